@@ -46,6 +46,7 @@ public class DialogActivity extends AppCompatActivity {
     public static final String EXTRA_LAST_SCREEN = "lastScreenItem";
     public static final String EXTRA_LAST_SOUND = "lastSoundItem";
     public static final String EXTRA_SETTINGS_SCREEN = "settingsScreen";
+    public static final String EXTRA_SETTINGS_SOUND = "settingsSound";
     public static final String EXTRA_DELETE_LAST_RECORDING = "deleteLastItem";
     private static final int REQUEST_RECORD_AUDIO_PERMS = 213;
     private static final String TYPE_AUDIO = "audio/wav";
@@ -56,6 +57,12 @@ public class DialogActivity extends AppCompatActivity {
     private Spinner mAudioSource;
     private Spinner mVideoQuality;
     private Switch mVideoShowTaps;
+    private Spinner mSoundFormat;
+    private Spinner mSoundProfile;
+    private Spinner mSoundPreRoll;
+    private Switch mSoundSkipSilence;
+    private Switch mSoundCleanUp;
+    private Switch mSoundLevelVoice;
 
     private SharedPreferences mPrefs;
 
@@ -77,6 +84,7 @@ public class DialogActivity extends AppCompatActivity {
         boolean isLastScreen = intent.getBooleanExtra(EXTRA_LAST_SCREEN, false);
         boolean isLastSound = intent.getBooleanExtra(EXTRA_LAST_SOUND, false);
         boolean isSettingsScreen = intent.getBooleanExtra(EXTRA_SETTINGS_SCREEN, false);
+        boolean isSettingsSound = intent.getBooleanExtra(EXTRA_SETTINGS_SOUND, false);
 
         getWindow().setLayout(ViewGroup.LayoutParams.MATCH_PARENT,
                 ViewGroup.LayoutParams.WRAP_CONTENT);
@@ -91,6 +99,8 @@ public class DialogActivity extends AppCompatActivity {
             setupAsLastItem(true);
         } else if (isSettingsScreen) {
             setupAsSettingsScreen();
+        } else if (isSettingsSound) {
+            setupAsSettingsSound();
         }
 
         animateAppearance();
@@ -141,8 +151,8 @@ public class DialogActivity extends AppCompatActivity {
     }
 
     private void playLastItem(boolean isSound) {
-        String type = isSound ? TYPE_AUDIO : TYPE_VIDEO;
         Uri uri = LastRecordHelper.getLastItemUri(this, isSound);
+        String type = getLastItemType(uri, isSound);
         Intent intent = LastRecordHelper.getOpenIntent(uri, type);
         if (intent != null) {
             startActivityForResult(intent, 0);
@@ -157,11 +167,19 @@ public class DialogActivity extends AppCompatActivity {
     }
 
     private void shareLastItem(boolean isSound) {
-        String type = isSound ? TYPE_AUDIO : TYPE_VIDEO;
         Uri uri = LastRecordHelper.getLastItemUri(this, isSound);
+        String type = getLastItemType(uri, isSound);
         startActivity(LastRecordHelper.getShareIntent(uri, type));
     }
 
+    private String getLastItemType(Uri uri, boolean isSound) {
+        String type = uri == null ? null : getContentResolver().getType(uri);
+        if (type == null) {
+            type = isSound ? TYPE_AUDIO : TYPE_VIDEO;
+        }
+        return type;
+    }
+
     private void setupAsSettingsScreen() {
         View view = createContentView(R.layout.dialog_content_screen_settings);
         mAudioSource = view.findViewById(R.id.dialog_content_screen_settings_audio_source);
@@ -209,6 +227,83 @@ public class DialogActivity extends AppCompatActivity {
         }
     }
 
+    private void setupAsSettingsSound() {
+        View view = createContentView(R.layout.dialog_content_sound_settings);
+        mSoundFormat = view.findViewById(R.id.dialog_content_sound_settings_format);
+        mSoundProfile = view.findViewById(R.id.dialog_content_sound_settings_profile);
+        mSoundPreRoll = view.findViewById(R.id.dialog_content_sound_settings_pre_roll);
+        mSoundSkipSilence = view.findViewById(R.id.dialog_content_sound_settings_skip_silence);
+        mSoundCleanUp = view.findViewById(R.id.dialog_content_sound_settings_clean_up);
+        mSoundLevelVoice = view.findViewById(R.id.dialog_content_sound_settings_level_voice);
+
+        mSoundFormat.setSelection(getSoundFormat());
+        mSoundProfile.setSelection(getSoundProfile());
+        mSoundPreRoll.setSelection(getSoundPreRoll());
+        mSoundSkipSilence.setChecked(getSoundSkipSilence());
+        mSoundCleanUp.setChecked(getSoundCleanUp());
+        mSoundLevelVoice.setChecked(getSoundLevelVoice());
+
+        mSoundFormat.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                setSoundFormat(position);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        mSoundProfile.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                setSoundProfile(position);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        mSoundPreRoll.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                setSoundPreRoll(position);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        mSoundSkipSilence.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setSoundSkipSilence(isChecked);
+            }
+        });
+
+        mSoundCleanUp.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setSoundCleanUp(isChecked);
+            }
+        });
+
+        mSoundLevelVoice.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setSoundLevelVoice(isChecked);
+            }
+        });
+
+        if (Utils.isSoundRecording(this)) {
+            mSoundFormat.setEnabled(false);
+            mSoundProfile.setEnabled(false);
+            mSoundPreRoll.setEnabled(false);
+            mSoundSkipSilence.setEnabled(false);
+            mSoundCleanUp.setEnabled(false);
+            mSoundLevelVoice.setEnabled(false);
+        }
+    }
+
     private View createContentView(@LayoutRes int layout) {
         LayoutInflater inflater = getLayoutInflater();
         return inflater.inflate(layout, mContent);
@@ -249,4 +344,52 @@ public class DialogActivity extends AppCompatActivity {
     private boolean getScreenWithTaps() {
         return mPrefs.getBoolean(Utils.PREF_SCREEN_RECORDING_TAPS, Utils.PREF_SCREEN_RECORDING_TAPS_DEFAULT);
     }
+
+    private void setSoundFormat(int format) {
+        mPrefs.edit().putInt(Utils.PREF_SOUND_RECORDING_FORMAT, format).apply();
+    }
+
+    private int getSoundFormat() {
+        return Utils.getSoundRecordingFormat(this);
+    }
+
+    private void setSoundProfile(int profile) {
+        mPrefs.edit().putInt(Utils.PREF_SOUND_RECORDING_PROFILE, profile).apply();
+    }
+
+    private int getSoundProfile() {
+        return Utils.getSoundRecordingProfile(this);
+    }
+
+    private void setSoundPreRoll(int preRoll) {
+        mPrefs.edit().putInt(Utils.PREF_SOUND_PRE_ROLL, preRoll).apply();
+    }
+
+    private int getSoundPreRoll() {
+        return Utils.getSoundPreRoll(this);
+    }
+
+    private void setSoundSkipSilence(boolean skipSilence) {
+        mPrefs.edit().putBoolean(Utils.PREF_SOUND_SKIP_SILENCE, skipSilence).apply();
+    }
+
+    private boolean getSoundSkipSilence() {
+        return Utils.getSoundSkipSilence(this);
+    }
+
+    private void setSoundCleanUp(boolean cleanUp) {
+        mPrefs.edit().putBoolean(Utils.PREF_SOUND_CLEAN_UP, cleanUp).apply();
+    }
+
+    private boolean getSoundCleanUp() {
+        return Utils.getSoundCleanUp(this);
+    }
+
+    private void setSoundLevelVoice(boolean levelVoice) {
+        mPrefs.edit().putBoolean(Utils.PREF_SOUND_LEVEL_VOICE, levelVoice).apply();
+    }
+
+    private boolean getSoundLevelVoice() {
+        return Utils.getSoundLevelVoice(this);
+    }
 }
\ No newline at end of file
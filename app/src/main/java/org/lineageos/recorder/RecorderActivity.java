@@ -43,6 +43,7 @@ import androidx.constraintlayout.widget.ConstraintSet;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.ActivityOptionsCompat;
 import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Lifecycle;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.transition.TransitionManager;
 
@@ -53,6 +54,7 @@ import org.lineageos.recorder.screen.ScreencastService;
 import org.lineageos.recorder.sounds.RecorderBinder;
 import org.lineageos.recorder.sounds.SoundRecorderService;
 import org.lineageos.recorder.ui.SoundVisualizer;
+import org.lineageos.recorder.ui.SpectrumView;
 import org.lineageos.recorder.utils.LastRecordHelper;
 import org.lineageos.recorder.utils.OnBoardingHelper;
 import org.lineageos.recorder.utils.PermissionUtils;
@@ -85,10 +87,12 @@ public class RecorderActivity extends AppCompatActivity {
 
     private FloatingActionButton mSoundFab;
     private ImageView mSoundLast;
+    private ImageView mSoundSettings;
 
     private RelativeLayout mRecordingLayout;
     private TextView mRecordingText;
     private SoundVisualizer mRecordingVisualizer;
+    private SpectrumView mRecordingSpectrum;
 
     private final BroadcastReceiver mTelephonyReceiver = new BroadcastReceiver() {
         @Override
@@ -127,16 +131,21 @@ public class RecorderActivity extends AppCompatActivity {
 
         mSoundFab = findViewById(R.id.sound_fab);
         mSoundLast = findViewById(R.id.sound_last_icon);
+        mSoundSettings = findViewById(R.id.sound_settings_icon);
 
         mRecordingLayout = findViewById(R.id.main_recording);
         mRecordingText = findViewById(R.id.main_recording_text);
         mRecordingVisualizer = findViewById(R.id.main_recording_visualizer);
+        mRecordingSpectrum = findViewById(R.id.main_recording_spectrum);
 
         mScreenFab.setOnClickListener(v -> toggleScreenRecorder());
         mSoundFab.setOnClickListener(v -> toggleSoundRecorder());
         mScreenSettings.setOnClickListener(v -> openScreenSettings());
         mScreenLast.setOnClickListener(v -> openLastScreen());
         mSoundLast.setOnClickListener(v -> openLastSound());
+        mSoundSettings.setOnClickListener(v -> openSoundSettings());
+        mRecordingVisualizer.setOnClickListener(v -> cycleVisualizerMode());
+        mRecordingSpectrum.setOnClickListener(v -> cycleVisualizerMode());
 
         bindSoundRecService();
 
@@ -190,9 +199,21 @@ public class RecorderActivity extends AppCompatActivity {
         super.onResume();
         Utils.stopOverlayService(this);
         refresh();
+        if (mSoundService != null) {
+            mSoundService.setPreRollEnabled(true);
+        }
         clearTransitionNames();
     }
 
+    @Override
+    protected void onPause() {
+        // Nothing listens in the background
+        if (mSoundService != null) {
+            mSoundService.setPreRollEnabled(false);
+        }
+        super.onPause();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
                                            @NonNull int[] results) {
@@ -329,7 +350,7 @@ public class RecorderActivity extends AppCompatActivity {
                     R.string.screen_recording_message : R.string.sound_recording_title_working));
             mRecordingLayout.setBackgroundColor(ContextCompat.getColor(this, screenRec ?
                     R.color.screen : R.color.sound));
-            mRecordingVisualizer.setVisibility(screenRec ? View.GONE : View.VISIBLE);
+            updateVisualizerVisibility(!screenRec);
             mScreenFab.setSelected(screenRec);
             mSoundFab.setSelected(!screenRec);
 
@@ -338,9 +359,9 @@ public class RecorderActivity extends AppCompatActivity {
                 set.clone(this, R.layout.constraint_screen);
             } else {
                 mSoundFab.setImageResource(R.drawable.ic_stop_sound);
-                mRecordingVisualizer.onAudioLevelUpdated(0);
                 if (mSoundService != null) {
-                    mSoundService.setAudioListener(mRecordingVisualizer);
+                    mRecordingVisualizer.setLevelMeter(mSoundService.getLevelMeter());
+                    mRecordingSpectrum.setAnalyzer(mSoundService.getSpectrumAnalyzer());
                 }
                 set.clone(this, R.layout.constraint_sound);
             }
@@ -349,7 +370,7 @@ public class RecorderActivity extends AppCompatActivity {
             mSoundFab.setImageResource(R.drawable.ic_action_sound_record);
             mScreenFab.setSelected(false);
             mSoundFab.setSelected(false);
-            mRecordingVisualizer.setVisibility(View.GONE);
+            updateVisualizerVisibility(false);
             set.clone(this, R.layout.constraint_default);
         }
 
@@ -360,6 +381,23 @@ public class RecorderActivity extends AppCompatActivity {
         set.applyTo(mConstraintRoot);
     }
 
+    private void cycleVisualizerMode() {
+        int mode = (Utils.getSoundVisualizerMode(this) + 1)
+                % (Utils.PREF_SOUND_VISUALIZER_MODE_SPECTROGRAM + 1);
+        Utils.setSoundVisualizerMode(this, mode);
+        updateVisualizerVisibility(true);
+    }
+
+    private void updateVisualizerVisibility(boolean soundRecording) {
+        int mode = Utils.getSoundVisualizerMode(this);
+        boolean level = soundRecording && mode == Utils.PREF_SOUND_VISUALIZER_MODE_LEVEL;
+        boolean spectrum = soundRecording && !level;
+        mRecordingVisualizer.setVisibility(level ? View.VISIBLE : View.GONE);
+        mRecordingSpectrum.setVisibility(spectrum ? View.VISIBLE : View.GONE);
+        mRecordingSpectrum.setStyle(mode == Utils.PREF_SOUND_VISUALIZER_MODE_SPECTROGRAM
+                ? SpectrumView.Style.SPECTROGRAM : SpectrumView.Style.BARS);
+    }
+
     private boolean checkSoundRecPermissions() {
         ArrayList<String> permissions = new ArrayList<>();
 
@@ -401,11 +439,16 @@ public class RecorderActivity extends AppCompatActivity {
             @Override
             public void onServiceConnected(ComponentName name, IBinder binder) {
                 mSoundService = ((RecorderBinder) binder).getService();
-                mSoundService.setAudioListener(mRecordingVisualizer);
+                mRecordingVisualizer.setLevelMeter(mSoundService.getLevelMeter());
+                mRecordingSpectrum.setAnalyzer(mSoundService.getSpectrumAnalyzer());
+                mSoundService.setPreRollEnabled(
+                        getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED));
             }
 
             @Override
             public void onServiceDisconnected(ComponentName name) {
+                mRecordingVisualizer.setLevelMeter(null);
+                mRecordingSpectrum.setAnalyzer(null);
                 mSoundService = null;
             }
         };
@@ -459,6 +502,7 @@ public class RecorderActivity extends AppCompatActivity {
         mScreenSettings.setTransitionName("");
         mScreenLast.setTransitionName("");
         mSoundLast.setTransitionName("");
+        mSoundSettings.setTransitionName("");
     }
 
     private void showDialog(Intent intent, View view) {
@@ -477,6 +521,13 @@ public class RecorderActivity extends AppCompatActivity {
         showDialog(intent, mScreenSettings);
     }
 
+    private void openSoundSettings() {
+        Intent intent = new Intent(this, DialogActivity.class);
+        intent.putExtra(DialogActivity.EXTRA_TITLE, R.string.sound_settings_title);
+        intent.putExtra(DialogActivity.EXTRA_SETTINGS_SOUND, true);
+        showDialog(intent, mSoundSettings);
+    }
+
     private void openLastScreen() {
         Intent intent = new Intent(this, DialogActivity.class);
         intent.putExtra(DialogActivity.EXTRA_TITLE, R.string.screen_last_title);
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Destination of a recording: receives blocks of interleaved 16 bit PCM and turns
+ * them into a file of some format. Closing the sink finalizes the file.
+ */
+public interface AudioSink extends Closeable {
+
+    /**
+     * Append a block of interleaved 16 bit samples.
+     *
+     * @param samples the samples, only read during the call
+     * @param length  number of samples (not frames) to append
+     */
+    void write(short[] samples, int length) throws IOException;
+
+    /**
+     * Append the remaining bytes of a buffer of interleaved little endian 16 bit
+     * samples, consuming them. Sinks storing PCM as is write the buffer without a
+     * copy; the others get the samples copied to the heap.
+     */
+    default void write(ByteBuffer samples) throws IOException {
+        short[] copy = new short[samples.remaining() / 2];
+        samples.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(copy);
+        samples.position(samples.limit());
+        write(copy, copy.length);
+    }
+
+    /**
+     * Make everything written so far durable and, where the format allows it,
+     * leave the file playable as is should the recording never be closed.
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return the number of bytes of the output file written so far
+     */
+    long getLength();
+
+    /**
+     * Store a block of metadata in the file. Only valid once all the audio has
+     * been written, right before closing.
+     *
+     * @param id      four character id of the block
+     * @param payload the remaining bytes are the content of the block
+     * @return false if the format has no room for it
+     */
+    default boolean addChunk(String id, ByteBuffer payload) throws IOException {
+        return false;
+    }
+}
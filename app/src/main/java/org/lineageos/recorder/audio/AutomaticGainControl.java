@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+/**
+ * Automatic gain control: slowly steers the average level towards a target.
+ * <p>
+ * Gain goes down over the attack time when the level rises and up over the much
+ * longer release time, so short pauses are not pumped up. Nothing is boosted while
+ * the level stays under the noise floor. Peaks are left to a limiter further down
+ * the chain.
+ */
+public final class AutomaticGainControl implements BlockProcessor {
+    // Time constant of the level detector
+    private static final int DETECTOR_MS = 300;
+
+    private final int mChannels;
+    private final float mTarget;
+    private final float mMaxGain;
+    private final float mNoiseFloor;
+    private final float mDetector;
+    private final float mAttack;
+    private final float mRelease;
+
+    private float mMeanSquare;
+    private float mGain;
+
+    /**
+     * @param targetDb     average level to reach, in dBFS
+     * @param maxGainDb    largest amplification
+     * @param noiseFloorDb level under which the gain is frozen, in dBFS
+     */
+    public AutomaticGainControl(int sampleRate, int channels, double targetDb,
+                                double maxGainDb, double noiseFloorDb, int attackMs,
+                                int releaseMs) {
+        mChannels = channels;
+        mTarget = (float) Math.pow(10, targetDb / 20);
+        mMaxGain = (float) Math.pow(10, maxGainDb / 20);
+        float floor = (float) Math.pow(10, noiseFloorDb / 20);
+        mNoiseFloor = floor * floor;
+        mDetector = NoiseGate.coefficient(sampleRate, DETECTOR_MS);
+        mAttack = NoiseGate.coefficient(sampleRate, attackMs);
+        mRelease = NoiseGate.coefficient(sampleRate, releaseMs);
+        reset();
+    }
+
+    @Override
+    public void process(float[] samples, int length) {
+        float meanSquare = mMeanSquare;
+        float gain = mGain;
+        float scale = 1f / mChannels;
+        for (int frame = 0; frame + mChannels <= length; frame += mChannels) {
+            float square = 0;
+            for (int i = frame; i < frame + mChannels; i++) {
+                square += samples[i] * samples[i];
+            }
+            meanSquare = square * scale + (meanSquare - square * scale) * mDetector;
+
+            if (meanSquare > mNoiseFloor) {
+                float target = Math.min(mMaxGain, mTarget / (float) Math.sqrt(meanSquare));
+                float coefficient = target < gain ? mAttack : mRelease;
+                gain = target + (gain - target) * coefficient;
+            }
+
+            for (int i = frame; i < frame + mChannels; i++) {
+                samples[i] *= gain;
+            }
+        }
+        mMeanSquare = meanSquare;
+        mGain = gain;
+    }
+
+    @Override
+    public void reset() {
+        mMeanSquare = 0;
+        mGain = 1;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.Arrays;
+
+/**
+ * Second order IIR filter in transposed direct form II, with the coefficients of
+ * the audio EQ cookbook.
+ */
+public final class Biquad implements BlockProcessor {
+    private final int mChannels;
+    private final float mB0;
+    private final float mB1;
+    private final float mB2;
+    private final float mA1;
+    private final float mA2;
+    private final float[] mZ1;
+    private final float[] mZ2;
+
+    private Biquad(int channels, double b0, double b1, double b2, double a0, double a1,
+                   double a2) {
+        mChannels = channels;
+        mB0 = (float) (b0 / a0);
+        mB1 = (float) (b1 / a0);
+        mB2 = (float) (b2 / a0);
+        mA1 = (float) (a1 / a0);
+        mA2 = (float) (a2 / a0);
+        mZ1 = new float[channels];
+        mZ2 = new float[channels];
+    }
+
+    /**
+     * Butterworth-like high-pass for rumble and handling noise when {@code q} is
+     * 1/sqrt(2).
+     */
+    public static Biquad highPass(int sampleRate, int channels, double cutoffHz, double q) {
+        double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        return new Biquad(channels, (1 + cos) / 2, -(1 + cos), (1 + cos) / 2,
+                1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    @Override
+    public void process(float[] samples, int length) {
+        for (int channel = 0; channel < mChannels; channel++) {
+            float z1 = mZ1[channel];
+            float z2 = mZ2[channel];
+            for (int i = channel; i < length; i += mChannels) {
+                float x = samples[i];
+                float y = mB0 * x + z1;
+                z1 = mB1 * x - mA1 * y + z2;
+                z2 = mB2 * x - mA2 * y;
+                samples[i] = y;
+            }
+            mZ1[channel] = z1;
+            mZ2[channel] = z2;
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mZ1, 0);
+        Arrays.fill(mZ2, 0);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2020 The LineageOS Project
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -13,8 +13,22 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package org.lineageos.recorder.sounds;
+package org.lineageos.recorder.audio;
 
-interface OnTimerUpdatedListener {
-    void onTimerUpdated(int seconds);
+/**
+ * Stage of a {@link ProcessingChain}. Works in place on blocks of interleaved
+ * samples scaled to [-1, 1], always from the same thread, and must not allocate.
+ */
+public interface BlockProcessor {
+
+    /**
+     * @param samples interleaved samples, modified in place
+     * @param length  number of samples (not frames) to process
+     */
+    void process(float[] samples, int length);
+
+    /**
+     * Forget the previous blocks, before a new stream.
+     */
+    void reset();
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.Arrays;
+
+/**
+ * Removes the DC offset of cheap microphones with a one pole high-pass:
+ * y[n] = x[n] - x[n-1] + r * y[n-1].
+ */
+public final class DcBlocker implements BlockProcessor {
+    private final int mChannels;
+    private final float mPole;
+    private final float[] mLastInput;
+    private final float[] mLastOutput;
+
+    /**
+     * @param cutoffHz frequency below which the signal is attenuated, a few Hz
+     */
+    public DcBlocker(int sampleRate, int channels, double cutoffHz) {
+        mChannels = channels;
+        mPole = (float) Math.exp(-2 * Math.PI * cutoffHz / sampleRate);
+        mLastInput = new float[channels];
+        mLastOutput = new float[channels];
+    }
+
+    @Override
+    public void process(float[] samples, int length) {
+        for (int channel = 0; channel < mChannels; channel++) {
+            float x1 = mLastInput[channel];
+            float y1 = mLastOutput[channel];
+            for (int i = channel; i < length; i += mChannels) {
+                float x = samples[i];
+                y1 = x - x1 + mPole * y1;
+                x1 = x;
+                samples[i] = y1;
+            }
+            mLastInput[channel] = x1;
+            mLastOutput[channel] = y1;
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mLastInput, 0);
+        Arrays.fill(mLastOutput, 0);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming FLAC writer for 16 bit PCM.
+ * <p>
+ * Frames are encoded as soon as a block is complete. STREAMINFO and a fixed size
+ * SEEKTABLE are reserved when the encoder is created and patched in place on
+ * {@link #close()}, like the {@link WavWriter} header. The MD5 signature of the
+ * audio is left unset, which decoders treat as unknown.
+ */
+public final class FlacEncoder implements AudioSink {
+    public static final String EXTENSION = ".flac";
+    public static final String MIME_TYPE = "audio/flac";
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int SEEK_POINTS = 128;
+
+    private static final int STREAMINFO_LENGTH = 34;
+    private static final int SEEK_POINT_LENGTH = 18;
+    private static final int METADATA_HEADER_LENGTH = 4;
+    private static final int SEEKTABLE_OFFSET = 4 + METADATA_HEADER_LENGTH + STREAMINFO_LENGTH;
+    private static final int HEADER_SIZE = SEEKTABLE_OFFSET + METADATA_HEADER_LENGTH
+            + SEEK_POINTS * SEEK_POINT_LENGTH;
+
+    private static final int METADATA_STREAMINFO = 0;
+    private static final int METADATA_SEEKTABLE = 3;
+
+    private final FileChannel mChannel;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final FlacFrameEncoder mFrameEncoder;
+    private final int[][] mBlock;
+    private final ByteBuffer mFrame;
+    private final ByteBuffer mHeader;
+
+    private int mBlockFill;
+    private long mFrameNumber;
+    private long mTotalSamples;
+    private long mLength = HEADER_SIZE;
+    private int mMinFrameSize = Integer.MAX_VALUE;
+    private int mMaxFrameSize;
+
+    // Seek points are taken every mSeekInterval frames, the table is thinned out
+    // and the interval doubled whenever it fills up
+    private final long[] mSeekSamples = new long[SEEK_POINTS];
+    private final long[] mSeekOffsets = new long[SEEK_POINTS];
+    private int mSeekCount;
+    private int mSeekInterval = 1;
+
+    public FlacEncoder(FileChannel channel, int sampleRate, int channels) throws IOException {
+        mChannel = channel;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrameEncoder = new FlacFrameEncoder(BLOCK_SIZE, channels, sampleRate);
+        mBlock = mFrameEncoder.getSamples();
+        mFrame = ByteBuffer.wrap(mFrameEncoder.getOutput());
+        mHeader = ByteBuffer.allocate(HEADER_SIZE);
+
+        writeHeader();
+        mChannel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void write(short[] samples, int length) throws IOException {
+        int channel = 0;
+        for (int i = 0; i < length; i++) {
+            mBlock[channel][mBlockFill] = samples[i];
+            if (++channel == mChannels) {
+                channel = 0;
+                if (++mBlockFill == BLOCK_SIZE) {
+                    writeFrame();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size of the file so far, header included
+     */
+    @Override
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the number of samples per channel encoded so far
+     */
+    public long getTotalSamples() {
+        return mTotalSamples;
+    }
+
+    /**
+     * Patch the metadata for the frames written so far and flush them to storage.
+     * Samples of the incomplete block are not part of the file yet.
+     */
+    @Override
+    public void sync() throws IOException {
+        writeHeader();
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mBlockFill > 0) {
+                writeFrame();
+            }
+            writeHeader();
+            mChannel.force(false);
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Repair a file left behind by an encoder that was never closed.
+     * <p>
+     * The file is cut at a frame boundary known to be complete. Since the metadata
+     * may describe a later state, the total sample count is marked as unknown and
+     * seek points past the cut are turned into placeholders.
+     *
+     * @param in     channel to read the file from, see {@link WavWriter#recover}
+     * @param out    channel to write the file with
+     * @param length size of the file at the last {@link #sync()}
+     * @return the length of the repaired file, or -1 if it is not one of ours
+     */
+    public static long recover(FileChannel in, FileChannel out, long length)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (header.hasRemaining()) {
+            int read = in.read(header, position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+        }
+        if (header.getInt(0) != 0x664c6143 /* fLaC */ || length < HEADER_SIZE
+                || in.size() < length
+                || header.get(SEEKTABLE_OFFSET) != (byte) (0x80 | METADATA_SEEKTABLE)) {
+            return -1;
+        }
+        out.truncate(length);
+
+        int totalOffset = 4 + METADATA_HEADER_LENGTH + 10;
+        header.putLong(totalOffset, header.getLong(totalOffset) & ~0xfffffffffL);
+        for (int i = 0; i < SEEK_POINTS; i++) {
+            int point = SEEKTABLE_OFFSET + METADATA_HEADER_LENGTH + i * SEEK_POINT_LENGTH;
+            if (header.getLong(point) != -1L && header.getLong(point + 8) >= length - HEADER_SIZE) {
+                header.putLong(point, -1L).putLong(point + 8, 0).putShort(point + 16, (short) 0);
+            }
+        }
+        header.rewind();
+        position = 0;
+        while (header.hasRemaining()) {
+            position += out.write(header, position);
+        }
+        out.force(false);
+        return length;
+    }
+
+    private void writeFrame() throws IOException {
+        if (mFrameNumber % mSeekInterval == 0) {
+            addSeekPoint();
+        }
+
+        int size = mFrameEncoder.encode(mFrameNumber, mBlockFill);
+        mFrame.limit(size).position(0);
+        while (mFrame.hasRemaining()) {
+            mChannel.write(mFrame);
+        }
+
+        mLength += size;
+        mTotalSamples += mBlockFill;
+        mMinFrameSize = Math.min(mMinFrameSize, size);
+        mMaxFrameSize = Math.max(mMaxFrameSize, size);
+        mFrameNumber++;
+        mBlockFill = 0;
+    }
+
+    private void addSeekPoint() {
+        if (mSeekCount == SEEK_POINTS) {
+            // Keep the points that are still on the new interval
+            int kept = 0;
+            for (int i = 0; i < mSeekCount; i += 2) {
+                mSeekSamples[kept] = mSeekSamples[i];
+                mSeekOffsets[kept] = mSeekOffsets[i];
+                kept++;
+            }
+            mSeekCount = kept;
+            mSeekInterval *= 2;
+            if (mFrameNumber % mSeekInterval != 0) {
+                return;
+            }
+        }
+        mSeekSamples[mSeekCount] = mTotalSamples;
+        mSeekOffsets[mSeekCount] = mLength - HEADER_SIZE;
+        mSeekCount++;
+    }
+
+    private void writeHeader() throws IOException {
+        int bits = FlacFrameEncoder.BITS_PER_SAMPLE;
+
+        mHeader.clear();
+        mHeader.put((byte) 'f').put((byte) 'L').put((byte) 'a').put((byte) 'C');
+
+        mHeader.putInt(METADATA_STREAMINFO << 24 | STREAMINFO_LENGTH);
+        mHeader.putShort((short) BLOCK_SIZE); // minimum block size
+        mHeader.putShort((short) BLOCK_SIZE); // maximum block size
+        putInt24(mMaxFrameSize == 0 ? 0 : mMinFrameSize);
+        putInt24(mMaxFrameSize);
+        // 20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1,
+        // 36 bits total samples
+        long total = mTotalSamples & 0xfffffffffL;
+        mHeader.putLong((long) mSampleRate << 44 | (long) (mChannels - 1) << 41
+                | (long) (bits - 1) << 36 | total);
+        mHeader.putLong(0).putLong(0); // MD5, unknown
+
+        mHeader.putInt(1 << 31 | METADATA_SEEKTABLE << 24 | SEEK_POINTS * SEEK_POINT_LENGTH);
+        for (int i = 0; i < SEEK_POINTS; i++) {
+            if (i < mSeekCount) {
+                int samples = (int) Math.min(BLOCK_SIZE, mTotalSamples - mSeekSamples[i]);
+                mHeader.putLong(mSeekSamples[i]);
+                mHeader.putLong(mSeekOffsets[i]);
+                mHeader.putShort((short) samples);
+            } else {
+                // Placeholder point
+                mHeader.putLong(-1L).putLong(0).putShort((short) 0);
+            }
+        }
+        mHeader.flip();
+
+        long position = 0;
+        while (mHeader.hasRemaining()) {
+            position += mChannel.write(mHeader, position);
+        }
+    }
+
+    private void putInt24(int value) {
+        mHeader.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+    }
+}
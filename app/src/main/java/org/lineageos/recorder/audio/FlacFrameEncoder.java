@@ -0,0 +1,689 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+/**
+ * Encodes blocks of 16 bit samples into FLAC frames.
+ * <p>
+ * Every subframe is coded with the cheapest of a constant value, a fixed
+ * polynomial predictor (order 0-4) and a quantized LPC predictor (order 1-8),
+ * residuals are Rice coded with an adaptive partition order. Stereo blocks pick
+ * the cheapest of independent, left/side, right/side and mid/side coding.
+ * All the working memory is allocated up front.
+ */
+final class FlacFrameEncoder {
+    static final int BITS_PER_SAMPLE = 16;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int LPC_PRECISION = 12;
+    private static final int MAX_LPC_SHIFT = 15;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAM = 14;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+    private static final int SUBFRAME_LPC = 32;
+
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int mBlockSize;
+    private final int mChannels;
+    private final int mSampleRateCode;
+
+    // Input, one row per channel
+    private final int[][] mSamples;
+    // Side and mid signals of stereo blocks
+    private final int[] mSide;
+    private final int[] mMid;
+
+    // Prediction
+    private final int[] mResidual;
+    private final int[] mBestResidual;
+    private final double[] mWindow;
+    private int mWindowLength;
+    private final double[] mWindowed;
+    private final double[] mAutocorrelation = new double[MAX_LPC_ORDER + 1];
+    private final double[][] mLpc = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+    private final double[] mLpcError = new double[MAX_LPC_ORDER];
+    private final double[] mLevinson = new double[MAX_LPC_ORDER];
+    private final double[] mLevinsonTmp = new double[MAX_LPC_ORDER];
+    private final int[] mQlp = new int[MAX_LPC_ORDER];
+    private final int[] mBestQlp = new int[MAX_LPC_ORDER];
+    private int mQlpShift;
+    private int mBestQlpShift;
+
+    // Rice coding
+    private final long[] mPartitionSums = new long[1 << (MAX_PARTITION_ORDER + 1)];
+    private int mPartitionOrder;
+    private int mBestPartitionOrder;
+
+    // Output
+    private final byte[] mOut;
+    private int mOutPosition;
+    private long mBitBuffer;
+    private int mBitCount;
+
+    /**
+     * @param blockSize  maximum number of samples per channel in a frame
+     * @param channels   number of channels, 1 to 8
+     * @param sampleRate sample rate in Hz, only used for the frame headers
+     */
+    FlacFrameEncoder(int blockSize, int channels, int sampleRate) {
+        mBlockSize = blockSize;
+        mChannels = channels;
+        mSampleRateCode = getSampleRateCode(sampleRate);
+
+        mSamples = new int[channels][blockSize];
+        mSide = new int[blockSize];
+        mMid = new int[blockSize];
+        mResidual = new int[blockSize];
+        mBestResidual = new int[blockSize];
+        mWindow = new double[blockSize];
+        mWindowed = new double[blockSize];
+
+        // Worst case is a verbatim frame (with a side channel) plus Rice estimation slack
+        mOut = new byte[32 + channels * ((blockSize * (BITS_PER_SAMPLE + 2)) / 8 + 8)];
+    }
+
+    int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return the per channel input rows the next frame is encoded from
+     */
+    int[][] getSamples() {
+        return mSamples;
+    }
+
+    byte[] getOutput() {
+        return mOut;
+    }
+
+    /**
+     * Encode the first {@code length} samples of every input row.
+     *
+     * @return the size of the frame in {@link #getOutput()}
+     */
+    int encode(long frameNumber, int length) {
+        mOutPosition = 0;
+        mBitBuffer = 0;
+        mBitCount = 0;
+
+        int assignment = mChannels - 1;
+        if (mChannels == 2) {
+            assignment = chooseStereoAssignment(length);
+        }
+
+        writeHeader(frameNumber, length, assignment);
+
+        switch (assignment) {
+            case CHANNELS_LEFT_SIDE:
+                encodeSubframe(mSamples[0], length, BITS_PER_SAMPLE);
+                encodeSubframe(mSide, length, BITS_PER_SAMPLE + 1);
+                break;
+            case CHANNELS_RIGHT_SIDE:
+                encodeSubframe(mSide, length, BITS_PER_SAMPLE + 1);
+                encodeSubframe(mSamples[1], length, BITS_PER_SAMPLE);
+                break;
+            case CHANNELS_MID_SIDE:
+                encodeSubframe(mMid, length, BITS_PER_SAMPLE);
+                encodeSubframe(mSide, length, BITS_PER_SAMPLE + 1);
+                break;
+            default:
+                for (int channel = 0; channel < mChannels; channel++) {
+                    encodeSubframe(mSamples[channel], length, BITS_PER_SAMPLE);
+                }
+                break;
+        }
+
+        // Byte align, then protect the whole frame
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+        int crc = 0;
+        for (int i = 0; i < mOutPosition; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ mOut[i]) & 0xff]) & 0xffff;
+        }
+        writeBits(crc, 16);
+        return mOutPosition;
+    }
+
+    private int chooseStereoAssignment(int length) {
+        int[] left = mSamples[0];
+        int[] right = mSamples[1];
+        for (int i = 0; i < length; i++) {
+            mSide[i] = left[i] - right[i];
+            mMid[i] = (left[i] + right[i]) >> 1;
+        }
+
+        long leftBits = estimateFixedBits(left, length);
+        long rightBits = estimateFixedBits(right, length);
+        long sideBits = estimateFixedBits(mSide, length);
+        long midBits = estimateFixedBits(mMid, length);
+
+        int assignment = 1;
+        long best = leftBits + rightBits;
+        if (leftBits + sideBits < best) {
+            best = leftBits + sideBits;
+            assignment = CHANNELS_LEFT_SIDE;
+        }
+        if (rightBits + sideBits < best) {
+            best = rightBits + sideBits;
+            assignment = CHANNELS_RIGHT_SIDE;
+        }
+        if (midBits + sideBits < best) {
+            assignment = CHANNELS_MID_SIDE;
+        }
+        return assignment;
+    }
+
+    private void writeHeader(long frameNumber, int length, int assignment) {
+        int start = mOutPosition;
+
+        writeBits(0xfff8, 16); // sync code, fixed block size stream
+        int blockSizeCode = length == mBlockSize ? getBlockSizeCode(length) : 7;
+        writeBits(blockSizeCode, 4);
+        writeBits(mSampleRateCode, 4);
+        writeBits(assignment, 4);
+        writeBits(4, 3); // 16 bits per sample
+        writeBits(0, 1);
+        writeUtf8(frameNumber);
+        if (blockSizeCode == 7) {
+            writeBits(length - 1, 16);
+        }
+
+        int crc = 0;
+        for (int i = start; i < mOutPosition; i++) {
+            crc = CRC8_TABLE[(crc ^ mOut[i]) & 0xff];
+        }
+        writeBits(crc, 8);
+    }
+
+    private void encodeSubframe(int[] x, int n, int bps) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            writeBits(SUBFRAME_CONSTANT << 1, 8);
+            writeBits(x[0], bps);
+            return;
+        }
+
+        // Fixed predictors
+        int fixedOrder = chooseFixedOrder(x, n);
+        computeFixedResidual(x, n, fixedOrder, mBestResidual);
+        long bestBits = computeRiceBits(mBestResidual, n, fixedOrder) + fixedOrder * bps;
+        int bestType = SUBFRAME_FIXED | fixedOrder;
+        int bestOrder = fixedOrder;
+        mBestPartitionOrder = mPartitionOrder;
+
+        // Linear prediction
+        int lpcOrder = computeLpc(x, n);
+        if (lpcOrder > 0 && quantizeLpc(lpcOrder)) {
+            computeLpcResidual(x, n, lpcOrder, mResidual);
+            long bits = computeRiceBits(mResidual, n, lpcOrder)
+                    + lpcOrder * (bps + LPC_PRECISION) + 9;
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestType = SUBFRAME_LPC | (lpcOrder - 1);
+                bestOrder = lpcOrder;
+                mBestPartitionOrder = mPartitionOrder;
+                mBestQlpShift = mQlpShift;
+                System.arraycopy(mQlp, 0, mBestQlp, 0, lpcOrder);
+                System.arraycopy(mResidual, lpcOrder, mBestResidual, lpcOrder, n - lpcOrder);
+            }
+        }
+
+        if (bestBits >= (long) n * bps) {
+            writeBits(SUBFRAME_VERBATIM << 1, 8);
+            for (int i = 0; i < n; i++) {
+                writeBits(x[i], bps);
+            }
+            return;
+        }
+
+        writeBits(bestType << 1, 8);
+        for (int i = 0; i < bestOrder; i++) {
+            writeBits(x[i], bps);
+        }
+        if ((bestType & SUBFRAME_LPC) != 0) {
+            writeBits(LPC_PRECISION - 1, 4);
+            writeBits(mBestQlpShift, 5);
+            for (int i = 0; i < bestOrder; i++) {
+                writeBits(mBestQlp[i], LPC_PRECISION);
+            }
+        }
+        writeResidual(mBestResidual, n, bestOrder, mBestPartitionOrder);
+    }
+
+    // Fixed prediction
+
+    private static int chooseFixedOrder(int[] x, int n) {
+        if (n <= MAX_FIXED_ORDER) {
+            return 0;
+        }
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+        int d1Prev = x[3] - x[2];
+        int d2Prev = d1Prev - (x[2] - x[1]);
+        int d3Prev = d2Prev - ((x[2] - x[1]) - (x[1] - x[0]));
+        for (int i = MAX_FIXED_ORDER; i < n; i++) {
+            int d0 = x[i];
+            int d1 = d0 - x[i - 1];
+            int d2 = d1 - d1Prev;
+            int d3 = d2 - d2Prev;
+            int d4 = d3 - d3Prev;
+            e0 += Math.abs(d0);
+            e1 += Math.abs(d1);
+            e2 += Math.abs(d2);
+            e3 += Math.abs(d3);
+            e4 += Math.abs(d4);
+            d1Prev = d1;
+            d2Prev = d2;
+            d3Prev = d3;
+        }
+
+        int order = 0;
+        long best = e0;
+        if (e1 < best) {
+            best = e1;
+            order = 1;
+        }
+        if (e2 < best) {
+            best = e2;
+            order = 2;
+        }
+        if (e3 < best) {
+            best = e3;
+            order = 3;
+        }
+        if (e4 < best) {
+            order = 4;
+        }
+        return order;
+    }
+
+    private static long estimateFixedBits(int[] x, int n) {
+        int order = chooseFixedOrder(x, n);
+        long sum = 0;
+        for (int i = order; i < n; i++) {
+            sum += Math.abs(fixedResidual(x, i, order));
+        }
+        int count = n - order;
+        if (count <= 0 || sum == 0) {
+            return count;
+        }
+        int k = Math.min(MAX_RICE_PARAM, riceParameter(2 * sum, count));
+        return (long) count * (k + 1) + ((2 * sum) >> k);
+    }
+
+    private static int fixedResidual(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return x[i];
+            case 1:
+                return x[i] - x[i - 1];
+            case 2:
+                return x[i] - 2 * x[i - 1] + x[i - 2];
+            case 3:
+                return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            default:
+                return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+
+    private static void computeFixedResidual(int[] x, int n, int order, int[] residual) {
+        for (int i = order; i < n; i++) {
+            residual[i] = fixedResidual(x, i, order);
+        }
+    }
+
+    // Linear prediction
+
+    /**
+     * Run Levinson-Durbin on the windowed autocorrelation of the block.
+     *
+     * @return the order with the lowest estimated cost, 0 if prediction is pointless
+     */
+    private int computeLpc(int[] x, int n) {
+        int maxOrder = Math.min(MAX_LPC_ORDER, n - 1);
+        if (maxOrder <= 0) {
+            return 0;
+        }
+
+        if (mWindowLength != n) {
+            computeTukeyWindow(n);
+        }
+        for (int i = 0; i < n; i++) {
+            mWindowed[i] = x[i] * mWindow[i];
+        }
+        for (int lag = 0; lag <= maxOrder; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += mWindowed[i] * mWindowed[i - lag];
+            }
+            mAutocorrelation[lag] = sum;
+        }
+
+        double error = mAutocorrelation[0];
+        if (error <= 0) {
+            return 0;
+        }
+
+        double[] a = mLevinson;
+        for (int m = 0; m < maxOrder; m++) {
+            double acc = mAutocorrelation[m + 1];
+            for (int j = 0; j < m; j++) {
+                acc -= a[j] * mAutocorrelation[m - j];
+            }
+            double k = acc / error;
+            for (int j = 0; j < m; j++) {
+                mLevinsonTmp[j] = a[j] - k * a[m - 1 - j];
+            }
+            System.arraycopy(mLevinsonTmp, 0, a, 0, m);
+            a[m] = k;
+            error *= 1 - k * k;
+
+            System.arraycopy(a, 0, mLpc[m], 0, m + 1);
+            mLpcError[m] = error;
+            if (error <= 0) {
+                maxOrder = m + 1;
+                break;
+            }
+        }
+
+        // Expected residual bits follow the log of the prediction error
+        int bestOrder = 0;
+        double bestBits = Double.MAX_VALUE;
+        for (int m = 0; m < maxOrder; m++) {
+            int order = m + 1;
+            double perSample = 0.5 * Math.log(Math.max(mLpcError[m], 1e-9) / n) / Math.log(2);
+            double bits = Math.max(perSample, 0) * (n - order)
+                    + order * (BITS_PER_SAMPLE + LPC_PRECISION);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = order;
+            }
+        }
+        return bestOrder;
+    }
+
+    private void computeTukeyWindow(int n) {
+        // Tukey window with a 50% taper
+        int taper = n / 4;
+        for (int i = 0; i < n; i++) {
+            double w = 1;
+            if (taper > 0 && i < taper) {
+                w = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+            } else if (taper > 0 && i >= n - taper) {
+                w = 0.5 - 0.5 * Math.cos(Math.PI * (n - 1 - i) / taper);
+            }
+            mWindow[i] = w;
+        }
+        mWindowLength = n;
+    }
+
+    private boolean quantizeLpc(int order) {
+        double[] lpc = mLpc[order - 1];
+        double max = 0;
+        for (int i = 0; i < order; i++) {
+            max = Math.max(max, Math.abs(lpc[i]));
+        }
+        if (max <= 0) {
+            return false;
+        }
+
+        int shift = LPC_PRECISION - 1 - (Math.getExponent(max) + 1);
+        if (shift < 0) {
+            return false;
+        }
+        shift = Math.min(shift, MAX_LPC_SHIFT);
+
+        int limit = (1 << (LPC_PRECISION - 1)) - 1;
+        double scale = 1 << shift;
+        double carry = 0;
+        for (int i = 0; i < order; i++) {
+            carry += lpc[i] * scale;
+            int q = (int) Math.round(carry);
+            q = Math.max(-limit - 1, Math.min(limit, q));
+            carry -= q;
+            mQlp[i] = q;
+        }
+        mQlpShift = shift;
+        return true;
+    }
+
+    private void computeLpcResidual(int[] x, int n, int order, int[] residual) {
+        int shift = mQlpShift;
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) mQlp[j] * x[i - 1 - j];
+            }
+            residual[i] = x[i] - (int) (sum >> shift);
+        }
+    }
+
+    // Rice coding
+
+    /**
+     * Pick the partition order with the lowest cost.
+     *
+     * @return the estimated size of the residual in bits
+     */
+    private long computeRiceBits(int[] residual, int n, int order) {
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER
+                && (n & ((1 << (maxPartitionOrder + 1)) - 1)) == 0
+                && (n >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+
+        // Folded sums of the finest partitioning, then merged level by level
+        int partitions = 1 << maxPartitionOrder;
+        int partitionSize = n >> maxPartitionOrder;
+        int offset = partitions;
+        int sample = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * partitionSize;
+            long sum = 0;
+            for (; sample < end; sample++) {
+                int r = residual[sample];
+                sum += (r << 1) ^ (r >> 31);
+            }
+            mPartitionSums[offset + p] = sum;
+        }
+        for (int level = maxPartitionOrder - 1; level >= 0; level--) {
+            int levelOffset = 1 << level;
+            for (int p = 0; p < levelOffset; p++) {
+                mPartitionSums[levelOffset + p] = mPartitionSums[2 * (levelOffset + p)]
+                        + mPartitionSums[2 * (levelOffset + p) + 1];
+            }
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        for (int level = 0; level <= maxPartitionOrder; level++) {
+            long bits = 6;
+            int count = 1 << level;
+            int size = n >> level;
+            for (int p = 0; p < count; p++) {
+                int samples = p == 0 ? size - order : size;
+                long sum = mPartitionSums[count + p];
+                int k = riceParameter(sum, samples);
+                bits += 4 + (long) samples * (k + 1) + (sum >> k);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                mPartitionOrder = level;
+            }
+        }
+        return bestBits;
+    }
+
+    private static int riceParameter(long sum, int count) {
+        if (count <= 0 || sum < count) {
+            return 0;
+        }
+        int k = 63 - Long.numberOfLeadingZeros(sum / count);
+        return Math.min(k, MAX_RICE_PARAM);
+    }
+
+    private void writeResidual(int[] residual, int n, int order, int partitionOrder) {
+        writeBits(0, 2); // 4 bit Rice parameters
+        writeBits(partitionOrder, 4);
+
+        int count = 1 << partitionOrder;
+        int size = n >> partitionOrder;
+        int sample = order;
+        for (int p = 0; p < count; p++) {
+            int end = (p + 1) * size;
+            // The partition sums may belong to another predictor by now
+            long sum = 0;
+            for (int i = sample; i < end; i++) {
+                int r = residual[i];
+                sum += (r << 1) ^ (r >> 31);
+            }
+            int k = riceParameter(sum, end - sample);
+            writeBits(k, 4);
+            for (; sample < end; sample++) {
+                writeRice(residual[sample], k);
+            }
+        }
+    }
+
+    // Bit output
+
+    private void writeBits(int value, int bits) {
+        mBitBuffer = (mBitBuffer << bits) | (value & ((1L << bits) - 1));
+        mBitCount += bits;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mOut[mOutPosition++] = (byte) (mBitBuffer >>> mBitCount);
+        }
+    }
+
+    private void writeRice(int value, int k) {
+        int folded = (value << 1) ^ (value >> 31);
+        int quotient = folded >>> k;
+        while (quotient >= 31) {
+            writeBits(0, 31);
+            quotient -= 31;
+        }
+        writeBits(1, quotient + 1);
+        if (k > 0) {
+            writeBits(folded, k);
+        }
+    }
+
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            writeBits((int) value, 8);
+            return;
+        }
+        int bytes = value < 0x800 ? 2 : value < 0x10000 ? 3 : value < 0x200000 ? 4
+                : value < 0x4000000 ? 5 : 6;
+        int lead = (0xff00 >> bytes) & 0xff;
+        writeBits(lead | (int) (value >>> (6 * (bytes - 1))), 8);
+        for (int i = bytes - 2; i >= 0; i--) {
+            writeBits(0x80 | (int) ((value >>> (6 * i)) & 0x3f), 8);
+        }
+    }
+
+    private static int getBlockSizeCode(int blockSize) {
+        switch (blockSize) {
+            case 192:
+                return 1;
+            case 576:
+                return 2;
+            case 1152:
+                return 3;
+            case 2304:
+                return 4;
+            case 4608:
+                return 5;
+            case 256:
+                return 8;
+            case 512:
+                return 9;
+            case 1024:
+                return 10;
+            case 2048:
+                return 11;
+            case 4096:
+                return 12;
+            case 8192:
+                return 13;
+            case 16384:
+                return 14;
+            case 32768:
+                return 15;
+            default:
+                // Stored as 16 bit value after the frame number
+                return 7;
+        }
+    }
+
+    private static int getSampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 88200:
+                return 1;
+            case 176400:
+                return 2;
+            case 192000:
+                return 3;
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                // Taken from STREAMINFO
+                return 0;
+        }
+    }
+}
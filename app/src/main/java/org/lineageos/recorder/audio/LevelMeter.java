@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes rms, peak and clipped sample count of every captured block.
+ * <p>
+ * The result of the last block is packed in a single volatile long so readers on
+ * any thread get a consistent snapshot without locking. Processing is skipped
+ * entirely while the meter is disabled.
+ */
+public final class LevelMeter {
+    private static final int CLIP_LEVEL = Short.MAX_VALUE;
+
+    private volatile boolean mEnabled;
+    private volatile long mSnapshot;
+    private long mClips;
+    private short[] mScratch;
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void reset() {
+        mClips = 0;
+        mSnapshot = 0;
+    }
+
+    /**
+     * Meter a block of 16 bit samples. Must be called from a single thread.
+     */
+    public void process(short[] samples, int length) {
+        if (!mEnabled || length <= 0) {
+            return;
+        }
+
+        long sumSquares = 0;
+        int peak = 0;
+        int clips = 0;
+        for (int i = 0; i < length; i++) {
+            int sample = samples[i];
+            int abs = sample < 0 ? -sample : sample;
+            sumSquares += sample * sample;
+            if (abs > peak) {
+                peak = abs;
+            }
+            if (abs >= CLIP_LEVEL) {
+                clips++;
+            }
+        }
+
+        int rms = (int) Math.sqrt((double) sumSquares / length);
+        mClips += clips;
+        mSnapshot = ((long) rms << 48) | ((long) peak << 32) | (mClips & 0xffffffffL);
+    }
+
+    /**
+     * Meter the remaining 16 bit samples of a buffer, read in its byte order. The
+     * position is left untouched. Must be called from the thread of
+     * {@link #process(short[], int)}.
+     */
+    public void process(ByteBuffer samples) {
+        if (!mEnabled) {
+            return;
+        }
+        // A bulk copy and the array loop beat reading the buffer sample by sample
+        int length = samples.remaining() / 2;
+        if (mScratch == null || mScratch.length < length) {
+            mScratch = new short[length];
+        }
+        samples.asShortBuffer().get(mScratch, 0, length);
+        process(mScratch, length);
+    }
+
+    /**
+     * @return the packed levels of the last block, see {@link #getRms(long)},
+     * {@link #getPeak(long)} and {@link #getClips(long)}
+     */
+    public long getSnapshot() {
+        return mSnapshot;
+    }
+
+    public static int getRms(long snapshot) {
+        return (int) (snapshot >>> 48);
+    }
+
+    public static int getPeak(long snapshot) {
+        return (int) ((snapshot >>> 32) & 0xffff);
+    }
+
+    /**
+     * @return the number of clipped samples since the last {@link #reset()}
+     */
+    public static int getClips(long snapshot) {
+        return (int) snapshot;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.Arrays;
+
+/**
+ * Brickwall limiter that sees peaks coming.
+ * <p>
+ * The signal is delayed by the look-ahead time. The gain every frame needs is
+ * held at its minimum over the look-ahead window and then averaged over the same
+ * window, so the gain has fully ramped down by the time a peak leaves the delay
+ * line and the output never exceeds the ceiling. Afterwards the gain recovers over
+ * the release time.
+ */
+public final class LookaheadLimiter implements BlockProcessor {
+    private final int mChannels;
+    private final float mCeiling;
+    private final float mRelease;
+    private final int mWindow;
+
+    // Delay line of mWindow - 1 frames
+    private final float[] mDelay;
+    private int mDelayPosition;
+
+    // Monotonic queue of the gains needed over the window, for a running minimum
+    private final float[] mMinGains;
+    private final long[] mMinFrames;
+    private int mMinHead;
+    private int mMinSize;
+
+    // Running average of the held gain
+    private final float[] mAverage;
+    private int mAveragePosition;
+    private double mAverageSum;
+
+    private float mHeldGain;
+    private long mFrame;
+
+    /**
+     * @param ceilingDb   largest output level, in dBFS
+     * @param lookaheadMs delay of the signal, and time the gain takes to go down
+     */
+    public LookaheadLimiter(int sampleRate, int channels, double ceilingDb, int lookaheadMs,
+                            int releaseMs) {
+        mChannels = channels;
+        mCeiling = (float) Math.pow(10, ceilingDb / 20);
+        mRelease = NoiseGate.coefficient(sampleRate, releaseMs);
+        mWindow = Math.max(2, lookaheadMs * sampleRate / 1000);
+        mDelay = new float[(mWindow - 1) * channels];
+        mMinGains = new float[mWindow];
+        mMinFrames = new long[mWindow];
+        mAverage = new float[mWindow];
+        reset();
+    }
+
+    /**
+     * @return the delay added to the signal, in frames
+     */
+    public int getLatency() {
+        return mWindow - 1;
+    }
+
+    @Override
+    public void process(float[] samples, int length) {
+        int window = mWindow;
+        for (int frame = 0; frame + mChannels <= length; frame += mChannels) {
+            float peak = 0;
+            for (int i = frame; i < frame + mChannels; i++) {
+                peak = Math.max(peak, Math.abs(samples[i]));
+            }
+            float needed = peak > mCeiling ? mCeiling / peak : 1;
+
+            // Running minimum of the needed gain over the last window frames
+            if (mMinSize > 0 && mMinFrames[mMinHead] <= mFrame - window) {
+                mMinHead = (mMinHead + 1) % window;
+                mMinSize--;
+            }
+            while (mMinSize > 0 && mMinGains[(mMinHead + mMinSize - 1) % window] >= needed) {
+                mMinSize--;
+            }
+            int tail = (mMinHead + mMinSize) % window;
+            mMinGains[tail] = needed;
+            mMinFrames[tail] = mFrame;
+            mMinSize++;
+            float minimum = mMinGains[mMinHead];
+
+            // Drop at once, recover smoothly; the average below smooths the drop
+            float held = minimum < mHeldGain ? minimum
+                    : minimum + (mHeldGain - minimum) * mRelease;
+            mHeldGain = held;
+
+            mAverageSum += held - mAverage[mAveragePosition];
+            mAverage[mAveragePosition] = held;
+            mAveragePosition = (mAveragePosition + 1) % window;
+            float gain = (float) (mAverageSum / window);
+
+            int delayed = mDelayPosition;
+            for (int i = frame; i < frame + mChannels; i++, delayed++) {
+                float sample = mDelay[delayed];
+                mDelay[delayed] = samples[i];
+                samples[i] = sample * gain;
+            }
+            mDelayPosition = delayed == mDelay.length ? 0 : delayed;
+            mFrame++;
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mDelay, 0);
+        Arrays.fill(mAverage, 1);
+        mDelayPosition = 0;
+        mMinHead = 0;
+        mMinSize = 0;
+        mAveragePosition = 0;
+        mAverageSum = mWindow;
+        mHeldGain = 1;
+        mFrame = 0;
+    }
+}
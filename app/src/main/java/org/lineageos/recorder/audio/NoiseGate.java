@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+/**
+ * Attenuates the signal while its level stays below a threshold.
+ * <p>
+ * The level is the peak of all channels followed by a decaying envelope; the
+ * gate opens within the attack time, stays open for the hold time once the level
+ * drops and then closes over the release time.
+ */
+public final class NoiseGate implements BlockProcessor {
+    private final int mChannels;
+    private final float mThreshold;
+    private final float mFloor;
+    private final float mEnvelopeDecay;
+    private final float mAttack;
+    private final float mRelease;
+    private final int mHoldFrames;
+
+    private float mEnvelope;
+    private float mGain;
+    private int mHold;
+
+    /**
+     * @param thresholdDb level under which the gate closes, in dBFS
+     * @param rangeDb     attenuation of the closed gate
+     */
+    public NoiseGate(int sampleRate, int channels, double thresholdDb, double rangeDb,
+                     int attackMs, int holdMs, int releaseMs) {
+        mChannels = channels;
+        mThreshold = (float) Math.pow(10, thresholdDb / 20);
+        mFloor = (float) Math.pow(10, -rangeDb / 20);
+        mEnvelopeDecay = coefficient(sampleRate, 10);
+        mAttack = coefficient(sampleRate, attackMs);
+        mRelease = coefficient(sampleRate, releaseMs);
+        mHoldFrames = holdMs * sampleRate / 1000;
+        reset();
+    }
+
+    @Override
+    public void process(float[] samples, int length) {
+        float envelope = mEnvelope;
+        float gain = mGain;
+        int hold = mHold;
+        for (int frame = 0; frame + mChannels <= length; frame += mChannels) {
+            float peak = 0;
+            for (int i = frame; i < frame + mChannels; i++) {
+                peak = Math.max(peak, Math.abs(samples[i]));
+            }
+            envelope = Math.max(peak, envelope * mEnvelopeDecay);
+
+            float target;
+            if (envelope >= mThreshold) {
+                hold = mHoldFrames;
+                target = 1;
+            } else if (hold > 0) {
+                hold--;
+                target = 1;
+            } else {
+                target = mFloor;
+            }
+            float coefficient = target > gain ? mAttack : mRelease;
+            gain = target + (gain - target) * coefficient;
+
+            for (int i = frame; i < frame + mChannels; i++) {
+                samples[i] *= gain;
+            }
+        }
+        mEnvelope = envelope;
+        mGain = gain;
+        mHold = hold;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0;
+        mGain = mFloor;
+        mHold = 0;
+    }
+
+    /**
+     * @return the per frame coefficient of a one pole smoother reaching 63% of a
+     * step after the given time
+     */
+    static float coefficient(int sampleRate, int ms) {
+        return ms <= 0 ? 0 : (float) Math.exp(-1000.0 / (ms * (double) sampleRate));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed set of direct buffers of 16 bit PCM passed from a producer thread to a
+ * consumer thread, for native code to fill and channels to write without a copy on
+ * the Java heap.
+ * <p>
+ * Buffers are little endian, the order of both the devices and the file formats.
+ * The producer waits for the consumer to hand a buffer back when all are in use.
+ */
+public final class PcmBufferPool {
+    // Handed to the consumer after the last buffer
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> mFree;
+    private final BlockingQueue<ByteBuffer> mFilled;
+    private final int mBufferSize;
+    private volatile long mStalls;
+    private volatile boolean mDetached;
+
+    /**
+     * @param count      number of buffers
+     * @param bufferSize size of each buffer in bytes
+     */
+    public PcmBufferPool(int count, int bufferSize) {
+        mFree = new ArrayBlockingQueue<>(count);
+        mFilled = new ArrayBlockingQueue<>(count + 1);
+        mBufferSize = bufferSize;
+        for (int i = 0; i < count; i++) {
+            mFree.add(ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return how many times the producer had to wait for a free buffer
+     */
+    public long getStalls() {
+        return mStalls;
+    }
+
+    /**
+     * @return the number of filled buffers waiting for the consumer
+     */
+    public int getQueued() {
+        return mFilled.size();
+    }
+
+    /**
+     * Get an empty buffer to fill. Only the producer thread may call this.
+     */
+    public ByteBuffer claim() throws InterruptedException {
+        ByteBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            mStalls++;
+            buffer = mFree.take();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hand a filled buffer to the consumer, its remaining bytes are the samples.
+     */
+    public void publish(ByteBuffer buffer) {
+        if (mDetached) {
+            mFree.add(buffer);
+            return;
+        }
+        mFilled.add(buffer);
+        // Raced with detach(), take it back if it is still there
+        if (mDetached && mFilled.remove(buffer)) {
+            mFree.add(buffer);
+        }
+    }
+
+    /**
+     * Signal the end of the stream, once every buffer published before has been taken.
+     */
+    public void close() {
+        mFilled.add(END);
+    }
+
+    /**
+     * Wait for the next filled buffer. Only the consumer thread may call this.
+     *
+     * @return the buffer, to be given back with {@link #recycle(ByteBuffer)}, or null
+     * once the pool has been closed
+     */
+    public ByteBuffer take() throws InterruptedException {
+        ByteBuffer buffer = mFilled.take();
+        return buffer == END ? null : buffer;
+    }
+
+    /**
+     * Give a buffer back to the producer, unfilled buffers included.
+     */
+    public void recycle(ByteBuffer buffer) {
+        mFree.add(buffer);
+    }
+
+    /**
+     * Stop consuming for good, e.g. after a write error. The producer keeps going,
+     * what it publishes is recycled right away.
+     */
+    public void detach() {
+        mDetached = true;
+        ByteBuffer buffer;
+        while ((buffer = mFilled.poll()) != null) {
+            if (buffer != END) {
+                mFree.add(buffer);
+            }
+        }
+    }
+}
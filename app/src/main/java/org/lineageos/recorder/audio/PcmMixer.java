@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Mixes a second 16-bit mono PCM source into a primary one, block by block.
+ * <p>
+ * The primary source sets the pace: its blocks are mixed in place as they come.
+ * The secondary one is captured by another thread and queued in a lock-free ring
+ * with a single producer and a single consumer. Both sources run on their own
+ * sample clock, so the ring slowly fills up or drains; the mixer keeps its fill
+ * around a target by dropping or repeating a single secondary sample now and then.
+ * <p>
+ * Each source has its own gain, sums past the knee are saturated softly instead of
+ * wrapping or clipping hard. Nothing is allocated once the mixer has been created.
+ */
+public final class PcmMixer {
+    private static final float FULL_SCALE = Short.MAX_VALUE;
+    private static final float KNEE = 0.8f * FULL_SCALE;
+    // Smoothing of the fill level, over about 32 blocks
+    private static final double FILL_SMOOTHING = 1.0 / 32;
+
+    private final short[] mRing;
+    private final int mMask;
+    private final int mTargetFill;
+    private final int mTolerance;
+    private final int mCorrectionInterval;
+
+    private volatile long mWritten;
+    private volatile long mRead;
+
+    // Only used by the thread calling mix()
+    private double mFill;
+    private boolean mPrimed;
+    private long mMixed;
+    private long mLastCorrection;
+
+    private volatile float mPrimaryGain = 1;
+    private volatile float mSecondaryGain = 1;
+    private volatile long mDropped;
+    private volatile long mUnderruns;
+    private volatile long mSkipped;
+    private volatile long mRepeated;
+
+    /**
+     * @param capacity           samples the secondary ring holds, rounded up to a
+     *                           power of two
+     * @param targetFill         secondary samples kept queued, which is also how far
+     *                           the secondary source lags behind the primary one
+     * @param tolerance          distance from the target the fill may drift before
+     *                           it is corrected
+     * @param correctionInterval primary samples between two corrections at least,
+     *                           which bounds how fast the secondary clock is bent
+     */
+    public PcmMixer(int capacity, int targetFill, int tolerance, int correctionInterval) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mRing = new short[size];
+        mMask = size - 1;
+        mTargetFill = Math.min(targetFill, size / 2);
+        mTolerance = tolerance;
+        mCorrectionInterval = correctionInterval;
+        mFill = mTargetFill;
+    }
+
+    public void setGains(double primaryDb, double secondaryDb) {
+        mPrimaryGain = (float) Math.pow(10, primaryDb / 20);
+        mSecondaryGain = (float) Math.pow(10, secondaryDb / 20);
+    }
+
+    /**
+     * Queue samples of the secondary source. Only one thread may call this.
+     * Samples that do not fit in the ring are dropped.
+     */
+    public void write(short[] samples, int length) {
+        long written = mWritten;
+        int count = (int) Math.min(length, mRing.length - (written - mRead));
+        if (count < length) {
+            mDropped += length - count;
+        }
+        int start = (int) (written & mMask);
+        int first = Math.min(count, mRing.length - start);
+        System.arraycopy(samples, 0, mRing, start, first);
+        System.arraycopy(samples, first, mRing, 0, count - first);
+        mWritten = written + count;
+    }
+
+    /**
+     * Mix the queued secondary samples into a block of the primary source, in place.
+     * Only one thread may call this.
+     *
+     * @param primary samples in native byte order from index 0, as the platform
+     *                captures them; the byte order of the buffer is changed to match
+     * @param length  number of samples in the block
+     */
+    public void mix(ByteBuffer primary, int length) {
+        primary.order(ByteOrder.nativeOrder());
+        long read = mRead;
+        long written = mWritten;
+        long available = written - read;
+        // What stays queued once the block has been mixed
+        long left = available - length;
+        mFill += (left - mFill) * FILL_SMOOTHING;
+
+        if (!mPrimed && left >= mTargetFill) {
+            // Start out, or start over after running dry, with the target queued
+            mPrimed = true;
+            mFill = left;
+        }
+
+        boolean repeat = false;
+        if (mPrimed && mMixed - mLastCorrection >= mCorrectionInterval) {
+            if (mFill > mTargetFill + mTolerance && available > length) {
+                // The secondary clock runs fast
+                read++;
+                mSkipped++;
+                mLastCorrection = mMixed;
+            } else if (mFill < mTargetFill - mTolerance && available > 0) {
+                // The secondary clock runs slow
+                repeat = true;
+                mRepeated++;
+                mLastCorrection = mMixed;
+            }
+        }
+
+        float primaryGain = mPrimaryGain;
+        float secondaryGain = mSecondaryGain;
+        boolean underrun = false;
+        for (int i = 0; i < length; i++) {
+            float sample = primary.getShort(i * 2) * primaryGain;
+            if (mPrimed) {
+                if (read < written) {
+                    sample += mRing[(int) (read & mMask)] * secondaryGain;
+                    if (repeat) {
+                        repeat = false;
+                    } else {
+                        read++;
+                    }
+                } else {
+                    underrun = true;
+                }
+            }
+            primary.putShort(i * 2, saturate(sample));
+        }
+        mRead = read;
+        mMixed += length;
+        if (underrun) {
+            mUnderruns++;
+            mPrimed = false;
+        }
+    }
+
+    private static short saturate(float sample) {
+        float magnitude = Math.abs(sample);
+        if (magnitude <= KNEE) {
+            return (short) sample;
+        }
+        // Same slope as the signal at the knee, bending towards full scale
+        float range = FULL_SCALE - KNEE;
+        float shaped = KNEE + range * (float) Math.tanh((magnitude - KNEE) / range);
+        return (short) Math.copySign(shaped, sample);
+    }
+
+    /**
+     * @return secondary samples currently queued
+     */
+    public int getFill() {
+        return (int) (mWritten - mRead);
+    }
+
+    /**
+     * @return secondary samples that did not fit in the ring
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return blocks the secondary source ran dry in
+     */
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    /**
+     * @return secondary samples dropped to keep up with the primary clock
+     */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * @return secondary samples repeated to keep up with the primary clock
+     */
+    public long getRepeated() {
+        return mRepeated;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of preallocated 16-bit PCM blocks with a single producer
+ * (the capture thread) and any number of independent readers.
+ * <p>
+ * Every reader owns its cursor, so a slow reader never delays the others.
+ * What happens when a reader falls a whole ring behind is decided by its
+ * {@link Backpressure} policy.
+ */
+public final class PcmRingBus {
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    public enum Backpressure {
+        /**
+         * The producer waits for the reader before overwriting a block it has not
+         * consumed yet. Nothing is lost as long as the ring absorbs the stalls.
+         */
+        BLOCK,
+        /**
+         * The producer never waits, blocks the reader could not keep up with are
+         * skipped and counted as dropped.
+         */
+        DROP
+    }
+
+    private final short[][] mBlocks;
+    private final int[] mLengths;
+    private final int mMask;
+    private final int mBlockSize;
+
+    private volatile long mPublished;
+    private volatile boolean mClosed;
+    private volatile Reader[] mReaders = new Reader[0];
+    private volatile Thread mProducerWaiter;
+
+    /**
+     * @param blockCount number of blocks in the ring, rounded up to a power of two
+     * @param blockSize number of samples in each block
+     */
+    public PcmRingBus(int blockCount, int blockSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, blockCount) - 1) << 1;
+        mBlocks = new short[capacity][blockSize];
+        mLengths = new int[capacity];
+        mMask = capacity - 1;
+        mBlockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getCapacity() {
+        return mBlocks.length;
+    }
+
+    /**
+     * @return the number of blocks published so far
+     */
+    public long getPublished() {
+        return mPublished;
+    }
+
+    /**
+     * @return the readers currently attached, for diagnostics
+     */
+    public Reader[] getReaders() {
+        return mReaders.clone();
+    }
+
+    public synchronized Reader addReader(String name, Backpressure policy) {
+        Reader reader = new Reader(name, policy, mPublished);
+        Reader[] readers = new Reader[mReaders.length + 1];
+        System.arraycopy(mReaders, 0, readers, 0, mReaders.length);
+        readers[mReaders.length] = reader;
+        mReaders = readers;
+        return reader;
+    }
+
+    public synchronized void removeReader(Reader reader) {
+        Reader[] current = mReaders;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == reader) {
+                Reader[] readers = new Reader[current.length - 1];
+                System.arraycopy(current, 0, readers, 0, i);
+                System.arraycopy(current, i + 1, readers, i, current.length - i - 1);
+                mReaders = readers;
+                break;
+            }
+        }
+        // The producer may be waiting for it
+        LockSupport.unpark(mProducerWaiter);
+    }
+
+    /**
+     * Get the block the producer should fill next. Only the producer thread may call this.
+     * Waits for {@link Backpressure#BLOCK} readers that have not consumed the block yet.
+     */
+    public short[] claim() {
+        long sequence = mPublished;
+        long reusedSequence = sequence - mBlocks.length;
+        if (reusedSequence >= 0) {
+            for (Reader reader : mReaders) {
+                if (reader.mPolicy != Backpressure.BLOCK || reader.mCursor > reusedSequence) {
+                    continue;
+                }
+                reader.mStalls++;
+                mProducerWaiter = Thread.currentThread();
+                while (reader.mCursor <= reusedSequence && !reader.mRemoved) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                mProducerWaiter = null;
+            }
+        }
+        return mBlocks[(int) (sequence & mMask)];
+    }
+
+    /**
+     * Make the block returned by {@link #claim()} visible to the readers.
+     *
+     * @param length number of valid samples in the block
+     */
+    public void publish(int length) {
+        long sequence = mPublished;
+        mLengths[(int) (sequence & mMask)] = length;
+        mPublished = sequence + 1;
+        wakeReaders();
+    }
+
+    /**
+     * Signal the end of the stream. Readers drain what has been published and then stop.
+     */
+    public void close() {
+        mClosed = true;
+        wakeReaders();
+    }
+
+    private void wakeReaders() {
+        for (Reader reader : mReaders) {
+            Thread waiter = reader.mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    public final class Reader {
+        private final String mName;
+        private final Backpressure mPolicy;
+
+        private volatile long mCursor;
+        private volatile Thread mWaiter;
+        private volatile boolean mRemoved;
+        private long mCurrent;
+
+        private volatile long mConsumed;
+        private volatile long mDropped;
+        private volatile long mStalls;
+
+        private Reader(String name, Backpressure policy, long cursor) {
+            mName = name;
+            mPolicy = policy;
+            mCursor = cursor;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Backpressure getPolicy() {
+            return mPolicy;
+        }
+
+        /**
+         * Wait for the next block.
+         *
+         * @return the number of samples in the block, or -1 once the bus has been
+         * closed and every published block has been consumed
+         */
+        public int acquire() {
+            long cursor = mCursor;
+            while (mPublished == cursor) {
+                if (mClosed) {
+                    if (mPublished == cursor) {
+                        return -1;
+                    }
+                    break;
+                }
+                mWaiter = Thread.currentThread();
+                if (mPublished == cursor && !mClosed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                mWaiter = null;
+            }
+
+            if (mPolicy == Backpressure.DROP) {
+                // The block being filled by the producer is not readable
+                long oldest = mPublished - mBlocks.length + 1;
+                if (cursor < oldest) {
+                    mDropped += oldest - cursor;
+                    cursor = oldest;
+                }
+            }
+
+            mCurrent = cursor;
+            return mLengths[(int) (cursor & mMask)];
+        }
+
+        /**
+         * @return the block returned by the last successful {@link #acquire()}
+         */
+        public short[] getBlock() {
+            return mBlocks[(int) (mCurrent & mMask)];
+        }
+
+        /**
+         * Give the current block back to the producer.
+         *
+         * @return false if a {@link Backpressure#DROP} reader was lapped while it was
+         * still reading the block, in which case its content must be discarded
+         */
+        public boolean release() {
+            boolean intact = mPublished < mCurrent + mBlocks.length;
+            if (!intact) {
+                mDropped++;
+            }
+            mCursor = mCurrent + 1;
+            mConsumed++;
+            Thread producer = mProducerWaiter;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+            return intact;
+        }
+
+        /**
+         * Detach the reader from the bus, the producer no longer waits for it.
+         */
+        public void remove() {
+            mRemoved = true;
+            removeReader(this);
+        }
+
+        public long getConsumed() {
+            return mConsumed;
+        }
+
+        /**
+         * @return the number of blocks this reader skipped because it fell behind
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        /**
+         * @return how many times the producer had to wait for this reader
+         */
+        public long getStalls() {
+            return mStalls;
+        }
+
+        /**
+         * @return the number of published blocks this reader has not consumed yet
+         */
+        public long getLag() {
+            return mPublished - mCursor;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sink decorator that builds a min/max waveform pyramid of everything written to
+ * the sink, so a waveform can be drawn without decoding the recording.
+ * <p>
+ * Every level summarizes {@link #BUCKET_RATIO} buckets of the level below it, the
+ * finest one {@link #FINE_BUCKET_FRAMES} frames of all channels. Levels are built
+ * as blocks come in, nothing is read twice.
+ * <p>
+ * The index is stored as a {@link #PEAK_CHUNK_ID} chunk when the sink supports it,
+ * otherwise it can be stored with {@link #writeIndex(WritableByteChannel)}. It is
+ * little endian: version, sample rate, channel count and level count as 32 bit
+ * values, then for every level, finest first, the frames per bucket and bucket
+ * count as 32 bit values followed by a signed byte pair (min, max) per bucket,
+ * in units of 256 sample steps.
+ */
+public final class PeakIndex implements AudioSink {
+    public static final String PEAK_CHUNK_ID = "peak";
+
+    public static final int FINE_BUCKET_FRAMES = 256;
+    public static final int BUCKET_RATIO = 16;
+    public static final int LEVELS = 3;
+
+    private static final int VERSION = 1;
+
+    private final AudioSink mSink;
+    private final int mSampleRate;
+    private final int mChannels;
+
+    // Quantized (min, max) pairs of every level
+    private final byte[][] mBuckets = new byte[LEVELS][];
+    private final int[] mBucketCounts = new int[LEVELS];
+
+    // Bucket being filled on every level
+    private final int[] mMin = new int[LEVELS];
+    private final int[] mMax = new int[LEVELS];
+    private final int[] mFill = new int[LEVELS];
+
+    private boolean mIndexEmbedded;
+    private short[] mScratch;
+
+    public PeakIndex(AudioSink sink, int sampleRate, int channels) {
+        mSink = sink;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        for (int level = 0; level < LEVELS; level++) {
+            mBuckets[level] = new byte[1024];
+            resetBucket(level);
+        }
+    }
+
+    @Override
+    public void write(short[] samples, int length) throws IOException {
+        mSink.write(samples, length);
+        index(samples, length);
+    }
+
+    private void index(short[] samples, int length) {
+        int min = mMin[0];
+        int max = mMax[0];
+        int fill = mFill[0];
+        int i = 0;
+        while (i + mChannels <= length) {
+            for (int end = i + mChannels; i < end; i++) {
+                int sample = samples[i];
+                if (sample < min) {
+                    min = sample;
+                }
+                if (sample > max) {
+                    max = sample;
+                }
+            }
+            if (++fill == FINE_BUCKET_FRAMES) {
+                addBucket(0, min, max);
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+                fill = 0;
+            }
+        }
+        mMin[0] = min;
+        mMax[0] = max;
+        mFill[0] = fill;
+    }
+
+    @Override
+    public void write(ByteBuffer samples) throws IOException {
+        // Index a copy, the buffer itself goes to the sink untouched
+        int length = samples.remaining() / 2;
+        if (mScratch == null || mScratch.length < length) {
+            mScratch = new short[length];
+        }
+        samples.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                .get(mScratch, 0, length);
+        index(mScratch, length);
+        mSink.write(samples);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mSink.sync();
+    }
+
+    @Override
+    public long getLength() {
+        return mSink.getLength();
+    }
+
+    @Override
+    public boolean addChunk(String id, ByteBuffer payload) throws IOException {
+        return mSink.addChunk(id, payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+            mIndexEmbedded = mSink.addChunk(PEAK_CHUNK_ID, encode());
+        } finally {
+            mSink.close();
+        }
+    }
+
+    /**
+     * @return whether {@link #close()} stored the index inside the output file
+     */
+    public boolean isIndexEmbedded() {
+        return mIndexEmbedded;
+    }
+
+    /**
+     * @return the number of buckets of a level, 0 being the finest
+     */
+    public int getBucketCount(int level) {
+        return mBucketCounts[level];
+    }
+
+    /**
+     * Write the index to a separate file, for formats that cannot carry it.
+     */
+    public void writeIndex(WritableByteChannel channel) throws IOException {
+        ByteBuffer index = encode();
+        while (index.hasRemaining()) {
+            channel.write(index);
+        }
+    }
+
+    private void addBucket(int level, int min, int max) {
+        int count = mBucketCounts[level];
+        byte[] buckets = mBuckets[level];
+        if (count * 2 == buckets.length) {
+            byte[] grown = new byte[buckets.length * 2];
+            System.arraycopy(buckets, 0, grown, 0, buckets.length);
+            mBuckets[level] = buckets = grown;
+        }
+        // Round outwards so quiet peaks do not vanish
+        buckets[count * 2] = (byte) (min >> 8);
+        buckets[count * 2 + 1] = (byte) Math.min(Byte.MAX_VALUE, (max + 255) >> 8);
+        mBucketCounts[level] = count + 1;
+
+        int parent = level + 1;
+        if (parent == LEVELS) {
+            return;
+        }
+        mMin[parent] = Math.min(mMin[parent], min);
+        mMax[parent] = Math.max(mMax[parent], max);
+        if (++mFill[parent] == BUCKET_RATIO) {
+            addBucket(parent, mMin[parent], mMax[parent]);
+            resetBucket(parent);
+        }
+    }
+
+    private void resetBucket(int level) {
+        mMin[level] = Integer.MAX_VALUE;
+        mMax[level] = Integer.MIN_VALUE;
+        mFill[level] = 0;
+    }
+
+    /**
+     * Close the partially filled buckets, finest first so they reach the levels above.
+     */
+    private void finish() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (mFill[level] > 0) {
+                addBucket(level, mMin[level], mMax[level]);
+                resetBucket(level);
+            }
+        }
+    }
+
+    private ByteBuffer encode() {
+        int size = 16;
+        for (int level = 0; level < LEVELS; level++) {
+            size += 8 + mBucketCounts[level] * 2;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(VERSION);
+        index.putInt(mSampleRate);
+        index.putInt(mChannels);
+        index.putInt(LEVELS);
+        int frames = FINE_BUCKET_FRAMES;
+        for (int level = 0; level < LEVELS; level++) {
+            index.putInt(frames);
+            index.putInt(mBucketCounts[level]);
+            index.put(mBuckets[level], 0, mBucketCounts[level] * 2);
+            frames *= BUCKET_RATIO;
+        }
+        index.flip();
+        return index;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Keeps the last seconds of a stream of 16 bit PCM, overwriting the oldest
+ * samples, so a recording can start before it was asked for.
+ * <p>
+ * Samples live in a direct buffer allocated once; writing and reading copy in bulk
+ * and allocate nothing. The buffer is meant for one thread at a time, hand it over
+ * with a happens-before edge such as {@link Thread#join()}.
+ */
+public final class PreRollBuffer {
+    private final int mSampleRate;
+    private final int mChannels;
+    // Views of the same memory, one to copy samples and one to copy bytes
+    private final ShortBuffer mSamples;
+    private final ByteBuffer mBytes;
+    private final int mCapacity;
+
+    // Index of the oldest sample and number of samples held
+    private int mStart;
+    private int mLength;
+
+    /**
+     * @param seconds how much audio to keep
+     */
+    public PreRollBuffer(int sampleRate, int channels, int seconds) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mCapacity = sampleRate * seconds * channels;
+        mBytes = ByteBuffer.allocateDirect(mCapacity * 2).order(ByteOrder.LITTLE_ENDIAN);
+        mSamples = mBytes.asShortBuffer();
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * @return the number of frames held once full
+     */
+    public int getCapacityFrames() {
+        return mCapacity / mChannels;
+    }
+
+    /**
+     * @return the number of frames held
+     */
+    public int getFrames() {
+        return mLength / mChannels;
+    }
+
+    public void clear() {
+        mStart = 0;
+        mLength = 0;
+    }
+
+    /**
+     * Append whole frames of interleaved samples, dropping the oldest ones once full.
+     */
+    public void write(short[] samples, int length) {
+        int offset = 0;
+        if (length > mCapacity) {
+            // Only the end fits
+            offset = length - mCapacity;
+            length = mCapacity;
+        }
+        int end = (mStart + mLength) % mCapacity;
+        int first = Math.min(length, mCapacity - end);
+        mSamples.limit(end + first).position(end);
+        mSamples.put(samples, offset, first);
+        if (first < length) {
+            mSamples.limit(length - first).position(0);
+            mSamples.put(samples, offset + first, length - first);
+        }
+
+        int overflow = mLength + length - mCapacity;
+        if (overflow > 0) {
+            mStart = (mStart + overflow) % mCapacity;
+            mLength = mCapacity;
+        } else {
+            mLength += length;
+        }
+    }
+
+    /**
+     * Remove the oldest samples.
+     *
+     * @param length largest number of samples to read, whole frames
+     * @return the number of samples read, 0 once empty
+     */
+    public int read(short[] out, int offset, int length) {
+        int count = Math.min(length, mLength);
+        int first = Math.min(count, mCapacity - mStart);
+        mSamples.limit(mStart + first).position(mStart);
+        mSamples.get(out, offset, first);
+        if (first < count) {
+            mSamples.limit(count - first).position(0);
+            mSamples.get(out, offset + first, count - first);
+        }
+        consume(count);
+        return count;
+    }
+
+    /**
+     * Remove the oldest samples, as many whole frames as fit in the remaining bytes
+     * of the given buffer. The buffer position is advanced past them.
+     *
+     * @return the number of samples read, 0 once empty
+     */
+    public int read(ByteBuffer out) {
+        int frameBytes = 2 * mChannels;
+        int count = Math.min(out.remaining() / frameBytes * mChannels, mLength);
+        int first = Math.min(count, mCapacity - mStart);
+        mBytes.limit((mStart + first) * 2).position(mStart * 2);
+        out.put(mBytes);
+        if (first < count) {
+            mBytes.limit((count - first) * 2).position(0);
+            out.put(mBytes);
+        }
+        consume(count);
+        return count;
+    }
+
+    private void consume(int count) {
+        mStart = (mStart + count) % mCapacity;
+        mLength -= count;
+        if (mLength == 0) {
+            mStart = 0;
+        }
+    }
+}
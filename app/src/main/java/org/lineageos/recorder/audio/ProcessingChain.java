@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs captured 16 bit blocks through a series of {@link BlockProcessor}s.
+ * <p>
+ * Blocks are converted to float once, go through all the stages in place and are
+ * converted back, so stages do not need to care about clipping. The time spent in
+ * every stage is accumulated and can be read from any thread.
+ */
+public final class ProcessingChain {
+    private static final float SCALE = 1f / 32768f;
+
+    private final List<String> mNames = new ArrayList<>();
+    private final List<BlockProcessor> mStages = new ArrayList<>();
+    private final float[] mBlock;
+
+    private BlockProcessor[] mStageArray = new BlockProcessor[0];
+    private AtomicLongArray mNanos = new AtomicLongArray(0);
+    private volatile long mBlocks;
+
+    /**
+     * @param blockSize largest number of samples processed at once, larger blocks
+     *                  are split
+     */
+    public ProcessingChain(int blockSize) {
+        mBlock = new float[blockSize];
+    }
+
+    /**
+     * Append a stage. Stages must all be added before the first block.
+     */
+    public ProcessingChain addStage(String name, BlockProcessor stage) {
+        mNames.add(name);
+        mStages.add(stage);
+        mStageArray = mStages.toArray(new BlockProcessor[0]);
+        mNanos = new AtomicLongArray(mStageArray.length);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mStageArray.length == 0;
+    }
+
+    /**
+     * Process a block of interleaved samples in place.
+     */
+    public void process(short[] samples, int length) {
+        BlockProcessor[] stages = mStageArray;
+        if (stages.length == 0) {
+            return;
+        }
+
+        float[] block = mBlock;
+        for (int offset = 0; offset < length; offset += block.length) {
+            int count = Math.min(block.length, length - offset);
+            for (int i = 0; i < count; i++) {
+                block[i] = samples[offset + i] * SCALE;
+            }
+            long start = System.nanoTime();
+            for (int stage = 0; stage < stages.length; stage++) {
+                stages[stage].process(block, count);
+                long end = System.nanoTime();
+                // Single writer, no need for a read-modify-write
+                mNanos.lazySet(stage, mNanos.get(stage) + end - start);
+                start = end;
+            }
+            for (int i = 0; i < count; i++) {
+                int sample = Math.round(block[i] * 32768f);
+                if (sample > Short.MAX_VALUE) {
+                    sample = Short.MAX_VALUE;
+                } else if (sample < Short.MIN_VALUE) {
+                    sample = Short.MIN_VALUE;
+                }
+                samples[offset + i] = (short) sample;
+            }
+        }
+        mBlocks++;
+    }
+
+    /**
+     * Reset the state of every stage and the counters, before a new stream.
+     */
+    public void reset() {
+        for (int stage = 0; stage < mStageArray.length; stage++) {
+            mStageArray[stage].reset();
+            mNanos.set(stage, 0);
+        }
+        mBlocks = 0;
+    }
+
+    public int getStageCount() {
+        return mStageArray.length;
+    }
+
+    public String getStageName(int stage) {
+        return mNames.get(stage);
+    }
+
+    /**
+     * @return the time spent in a stage since the last {@link #reset()}
+     */
+    public long getStageNanos(int stage) {
+        return mNanos.get(stage);
+    }
+
+    /**
+     * @return the number of blocks processed since the last {@link #reset()}
+     */
+    public long getBlockCount() {
+        return mBlocks;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        long blocks = Math.max(1, mBlocks);
+        for (int stage = 0; stage < mStageArray.length; stage++) {
+            if (stage > 0) {
+                sb.append(", ");
+            }
+            sb.append(mNames.get(stage)).append(' ')
+                    .append(mNanos.get(stage) / blocks / 1000).append(" us/block");
+        }
+        return sb.toString();
+    }
+}
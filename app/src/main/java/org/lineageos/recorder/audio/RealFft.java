@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+/**
+ * In place radix-2 FFT of real signals.
+ * <p>
+ * The N real samples are transformed as N/2 complex ones and the halves are then
+ * separated, which costs about half of a complex transform of the same size. All
+ * tables are computed in the constructor, transforms do not allocate.
+ * <p>
+ * The result is packed: element 0 holds the real DC term, element 1 the real
+ * Nyquist term, and elements 2k and 2k + 1 the real and imaginary parts of bin k.
+ */
+public final class RealFft {
+    private final int mSize;
+    private final int mHalf;
+    private final int[] mBitReverse;
+    // Twiddles of the complex transform of N/2 points
+    private final float[] mCos;
+    private final float[] mSin;
+    // Twiddles separating the two halves, for bins 0 to N/4
+    private final float[] mSplitCos;
+    private final float[] mSplitSin;
+
+    /**
+     * @param size number of real samples, a power of two of at least 4
+     */
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of two: " + size);
+        }
+        mSize = size;
+        mHalf = size / 2;
+
+        int bits = Integer.numberOfTrailingZeros(mHalf);
+        mBitReverse = new int[mHalf];
+        for (int i = 0; i < mHalf; i++) {
+            mBitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        mCos = new float[Math.max(1, mHalf / 2)];
+        mSin = new float[mCos.length];
+        for (int i = 0; i < mCos.length; i++) {
+            double angle = 2 * Math.PI * i / mHalf;
+            mCos[i] = (float) Math.cos(angle);
+            mSin[i] = (float) Math.sin(angle);
+        }
+
+        mSplitCos = new float[mHalf / 2 + 1];
+        mSplitSin = new float[mSplitCos.length];
+        for (int k = 0; k < mSplitCos.length; k++) {
+            double angle = 2 * Math.PI * k / size;
+            mSplitCos[k] = (float) Math.cos(angle);
+            mSplitSin[k] = (float) Math.sin(angle);
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Transform {@link #getSize()} real samples in place, see the class comment
+     * for the layout of the result.
+     */
+    public void transform(float[] data) {
+        complexTransform(data);
+
+        // DC and Nyquist are real
+        float re = data[0];
+        float im = data[1];
+        data[0] = re + im;
+        data[1] = re - im;
+
+        int half = mHalf;
+        for (int k = 1; k <= half / 2; k++) {
+            int a = 2 * k;
+            int b = 2 * (half - k);
+            float aRe = data[a];
+            float aIm = data[a + 1];
+            float bRe = data[b];
+            float bIm = data[b + 1];
+
+            // Spectra of the even and odd samples
+            float evenRe = (aRe + bRe) * 0.5f;
+            float evenIm = (aIm - bIm) * 0.5f;
+            float oddRe = (aRe - bRe) * 0.5f;
+            float oddIm = (aIm + bIm) * 0.5f;
+
+            // t = -i * exp(-2 pi i k / N) * odd
+            float c = mSplitCos[k];
+            float s = mSplitSin[k];
+            float tRe = c * oddIm - s * oddRe;
+            float tIm = -s * oddIm - c * oddRe;
+
+            data[a] = evenRe + tRe;
+            data[a + 1] = evenIm + tIm;
+            data[b] = evenRe - tRe;
+            data[b + 1] = -(evenIm - tIm);
+        }
+    }
+
+    /**
+     * Squared magnitude of a bin of a transformed block, 0 to N/2 included.
+     */
+    public static float power(float[] spectrum, int bin, int size) {
+        if (bin == 0) {
+            return spectrum[0] * spectrum[0];
+        }
+        if (bin == size / 2) {
+            return spectrum[1] * spectrum[1];
+        }
+        float re = spectrum[2 * bin];
+        float im = spectrum[2 * bin + 1];
+        return re * re + im * im;
+    }
+
+    private void complexTransform(float[] data) {
+        int n = mHalf;
+        for (int i = 0; i < n; i++) {
+            int j = mBitReverse[i];
+            if (j > i) {
+                float re = data[2 * i];
+                float im = data[2 * i + 1];
+                data[2 * i] = data[2 * j];
+                data[2 * i + 1] = data[2 * j + 1];
+                data[2 * j] = re;
+                data[2 * j + 1] = im;
+            }
+        }
+
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int j = 0, t = 0; j < half; j++, t += step) {
+                    int p = 2 * (start + j);
+                    int q = p + 2 * half;
+                    float c = mCos[t];
+                    float s = mSin[t];
+                    // Forward transform: multiply by exp(-2 pi i t / n)
+                    float qRe = data[q] * c + data[q + 1] * s;
+                    float qIm = data[q + 1] * c - data[q] * s;
+                    data[q] = data[p] - qRe;
+                    data[q + 1] = data[p + 1] - qIm;
+                    data[p] += qRe;
+                    data[p + 1] += qIm;
+                }
+            }
+        }
+    }
+}
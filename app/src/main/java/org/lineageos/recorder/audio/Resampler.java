@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming polyphase sample rate converter for interleaved 16 bit PCM.
+ * <p>
+ * The ratio is reduced to L/M, the input is conceptually upsampled by L, low-pass
+ * filtered with a Kaiser windowed sinc and decimated by M; only the filter phase
+ * needed for each output sample is evaluated. Filter tables are computed once per
+ * ratio and quality and shared by all the resamplers of the process.
+ * <p>
+ * The output is delayed by half the filter length, see {@link #getDelay()}.
+ */
+public final class Resampler {
+
+    public enum Quality {
+        /**
+         * 16 taps per phase, about 60 dB stop band, for previews and speech.
+         */
+        LOW(16, 6.0, 0.85),
+        /**
+         * 32 taps per phase, about 80 dB stop band.
+         */
+        MEDIUM(32, 8.0, 0.91),
+        /**
+         * 64 taps per phase, about 100 dB stop band, for exports.
+         */
+        HIGH(64, 10.0, 0.95);
+
+        final int mTaps;
+        final double mBeta;
+        final double mPassBand;
+
+        Quality(int taps, double beta, double passBand) {
+            mTaps = taps;
+            mBeta = beta;
+            mPassBand = passBand;
+        }
+    }
+
+    // Tables of larger ratios would not fit a reasonable amount of memory
+    private static final int MAX_PHASES = 4096;
+    private static final Map<String, float[][]> sFilters = new HashMap<>();
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mChannels;
+    private final int mUp;
+    private final int mDown;
+    private final int mTaps;
+    private final float[][] mFilter;
+
+    // Per channel input history followed by the frames of the current chunk
+    private final float[][] mHistory;
+    private final int mChunkFrames;
+    // Silence fed through the filter to push out its tail
+    private final short[] mSilence;
+    // Position of the newest input frame the next output needs, and its phase
+    private int mIndex;
+    private int mPhase;
+
+    /**
+     * @param inputRate  input sample rate in Hz
+     * @param outputRate output sample rate in Hz
+     * @param channels   number of interleaved channels
+     * @param chunkFrames number of input frames converted at once, larger writes are split
+     */
+    public Resampler(int inputRate, int outputRate, int channels, Quality quality,
+                     int chunkFrames) {
+        int gcd = gcd(inputRate, outputRate);
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        mChannels = channels;
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        if (mUp > MAX_PHASES) {
+            throw new IllegalArgumentException("Unsupported ratio " + inputRate + " to "
+                    + outputRate);
+        }
+        mTaps = quality.mTaps;
+        mFilter = getFilter(mUp, mDown, quality);
+        mChunkFrames = chunkFrames;
+        mHistory = new float[channels][mTaps - 1 + chunkFrames];
+        mSilence = new short[getDelay() * channels];
+        reset();
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * @return the delay of the output in input frames
+     */
+    public int getDelay() {
+        return mTaps / 2;
+    }
+
+    /**
+     * @return the largest number of samples {@link #process} can produce from
+     * {@code length} input samples
+     */
+    public int getMaxOutput(int length) {
+        long frames = ((long) (length / mChannels) * mUp + mDown - 1) / mDown + 1;
+        return (int) frames * mChannels;
+    }
+
+    /**
+     * Forget the input seen so far, as if the resampler was new.
+     */
+    public void reset() {
+        for (float[] history : mHistory) {
+            Arrays.fill(history, 0);
+        }
+        mIndex = mTaps - 1;
+        mPhase = 0;
+    }
+
+    /**
+     * Convert a block of interleaved samples.
+     *
+     * @param in        input samples
+     * @param length    number of input samples, all channels included
+     * @param out       output samples, large enough for {@link #getMaxOutput(int)}
+     * @param outOffset where to put the first output sample
+     * @return the number of output samples written
+     */
+    public int process(short[] in, int length, short[] out, int outOffset) {
+        int frames = length / mChannels;
+        int position = outOffset;
+        int offset = 0;
+        while (offset < frames) {
+            int count = Math.min(frames - offset, mChunkFrames);
+            position = processChunk(in, offset * mChannels, count, out, position);
+            offset += count;
+        }
+        return position - outOffset;
+    }
+
+    /**
+     * Push the input still held by the filter out, at the end of a stream.
+     *
+     * @param out       output samples, large enough for {@link #getMaxOutput(int)} of
+     *                  {@link #getDelay()} frames
+     * @param outOffset where to put the first output sample
+     * @return the number of output samples written
+     */
+    public int flush(short[] out, int outOffset) {
+        return process(mSilence, mSilence.length, out, outOffset);
+    }
+
+    private int processChunk(short[] in, int inOffset, int frames, short[] out, int position) {
+        int channels = mChannels;
+        int history = mTaps - 1;
+        int available = history + frames;
+
+        // Deinterleave behind the history
+        for (int channel = 0; channel < channels; channel++) {
+            float[] buffer = mHistory[channel];
+            for (int i = 0, j = inOffset + channel; i < frames; i++, j += channels) {
+                buffer[history + i] = in[j];
+            }
+        }
+
+        int index = mIndex;
+        int phase = mPhase;
+        int taps = mTaps;
+        while (index < available) {
+            float[] filter = mFilter[phase];
+            int first = index - taps + 1;
+            for (int channel = 0; channel < channels; channel++) {
+                float[] buffer = mHistory[channel];
+                float sum = 0;
+                // Taps are stored oldest first
+                for (int k = 0; k < taps; k++) {
+                    sum += filter[k] * buffer[first + k];
+                }
+                int sample = Math.round(sum);
+                if (sample > Short.MAX_VALUE) {
+                    sample = Short.MAX_VALUE;
+                } else if (sample < Short.MIN_VALUE) {
+                    sample = Short.MIN_VALUE;
+                }
+                out[position++] = (short) sample;
+            }
+            phase += mDown;
+            index += phase / mUp;
+            phase %= mUp;
+        }
+
+        // Keep the newest frames as history of the next chunk
+        for (int channel = 0; channel < channels; channel++) {
+            float[] buffer = mHistory[channel];
+            System.arraycopy(buffer, available - history, buffer, 0, history);
+        }
+        mIndex = index - frames;
+        mPhase = phase;
+        return position;
+    }
+
+    private static float[][] getFilter(int up, int down, Quality quality) {
+        String key = up + "/" + down + "/" + quality;
+        synchronized (sFilters) {
+            float[][] filter = sFilters.get(key);
+            if (filter == null) {
+                filter = designFilter(up, down, quality);
+                sFilters.put(key, filter);
+            }
+            return filter;
+        }
+    }
+
+    /**
+     * Split a Kaiser windowed sinc low-pass, designed at the upsampled rate, into
+     * its phases. Every phase is normalized to unity gain so there is no DC ripple.
+     */
+    private static float[][] designFilter(int up, int down, Quality quality) {
+        int taps = quality.mTaps;
+        int length = up * taps;
+        // Cut off below the lower of the two Nyquist frequencies, in input samples
+        double cutoff = quality.mPassBand * Math.min(1.0, (double) up / down);
+        double center = (length - 1) / 2.0;
+        double i0Beta = besselI0(quality.mBeta);
+
+        float[][] filter = new float[up][taps];
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            double[] coefficients = new double[taps];
+            for (int k = 0; k < taps; k++) {
+                int j = k * up + phase;
+                double t = (j - center) / up;
+                double sinc = t == 0 ? cutoff : Math.sin(Math.PI * cutoff * t) / (Math.PI * t);
+                double r = (j - center) / center;
+                double window = besselI0(quality.mBeta * Math.sqrt(Math.max(0, 1 - r * r)))
+                        / i0Beta;
+                coefficients[k] = sinc * window;
+                sum += coefficients[k];
+            }
+            // Tap k of the phase applies to input frame (index - k), store oldest first
+            for (int k = 0; k < taps; k++) {
+                filter[phase][taps - 1 - k] = (float) (coefficients[k] / sum);
+            }
+        }
+        return filter;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double half = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= half / k;
+            double square = term * term;
+            sum += square;
+            if (square < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
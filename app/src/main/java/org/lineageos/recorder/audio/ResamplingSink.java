@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sink decorator that converts everything written to it to another sample rate.
+ * <p>
+ * The delay of the filter is compensated: the output starts with the first input
+ * frame and the tail held by the filter is written on {@link #close()}, so the
+ * output lasts as long as the input.
+ */
+public final class ResamplingSink implements AudioSink {
+    private final AudioSink mSink;
+    private final Resampler mResampler;
+
+    // Output samples still to drop to compensate the filter delay
+    private int mSkip;
+    private short[] mBuffer;
+
+    /**
+     * @param sink      sink receiving samples at the output rate of the resampler
+     * @param blockSize largest number of samples, all channels included, written at once
+     */
+    public ResamplingSink(AudioSink sink, Resampler resampler, int blockSize) {
+        int channels = resampler.getChannels();
+        mSink = sink;
+        mResampler = resampler;
+        mSkip = (int) ((long) resampler.getDelay() * resampler.getOutputRate()
+                / resampler.getInputRate()) * channels;
+        mBuffer = new short[Math.max(resampler.getMaxOutput(blockSize),
+                resampler.getMaxOutput(resampler.getDelay() * channels))];
+    }
+
+    @Override
+    public void write(short[] samples, int length) throws IOException {
+        int max = mResampler.getMaxOutput(length);
+        if (mBuffer.length < max) {
+            mBuffer = new short[max];
+        }
+        forward(mResampler.process(samples, length, mBuffer, 0));
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mSink.sync();
+    }
+
+    @Override
+    public long getLength() {
+        return mSink.getLength();
+    }
+
+    @Override
+    public boolean addChunk(String id, ByteBuffer payload) throws IOException {
+        return mSink.addChunk(id, payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            forward(mResampler.flush(mBuffer, 0));
+        } finally {
+            mSink.close();
+        }
+    }
+
+    private void forward(int length) throws IOException {
+        int offset = Math.min(mSkip, length);
+        mSkip -= offset;
+        if (offset == 0) {
+            mSink.write(mBuffer, length);
+        } else if (offset < length) {
+            // Only happens on the first blocks, shifting is cheaper than an offset API
+            System.arraycopy(mBuffer, offset, mBuffer, 0, length - offset);
+            mSink.write(mBuffer, length - offset);
+        }
+    }
+}
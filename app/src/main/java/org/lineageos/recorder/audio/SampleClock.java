@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+/**
+ * Presentation times of captured audio, counted in frames from an anchor.
+ * <p>
+ * The anchor comes from the capture timestamps the platform reports, so when
+ * reads return has no effect on the timestamps. The timestamps keep being compared
+ * to the count: the difference is how far the sample clock of the device has
+ * drifted from the monotonic clock the video is stamped with. Past a tolerance the
+ * anchor is slewed by a bounded amount per second of audio. The samples themselves
+ * are never touched.
+ */
+public final class SampleClock {
+    private final int mSampleRate;
+    private final long mToleranceNanos;
+    private final long mMaxSlewNanos;
+
+    // Frames handed out so far and the time of frame 0, only used by the capture thread
+    private long mFrames;
+    private long mAnchorNanos;
+    private long mLastNanos = Long.MIN_VALUE;
+    private long mLastSlewFrame;
+    private boolean mProvisional;
+
+    private volatile boolean mAnchored;
+    private volatile long mDriftNanos;
+    private volatile long mMaxDriftNanos;
+    private volatile long mCorrectionNanos;
+
+    /**
+     * @param toleranceNanos drift left alone
+     * @param maxSlewNanos   largest correction of the anchor per second of audio
+     */
+    public SampleClock(int sampleRate, long toleranceNanos, long maxSlewNanos) {
+        mSampleRate = sampleRate;
+        mToleranceNanos = toleranceNanos;
+        mMaxSlewNanos = maxSlewNanos;
+    }
+
+    /**
+     * Account for a capture timestamp: the frame at {@code framePosition} since the
+     * start of the capture was captured at {@code nanoTime}.
+     */
+    public void onTimestamp(long framePosition, long nanoTime) {
+        if (!mAnchored) {
+            mAnchorNanos = nanoTime - toNanos(framePosition);
+            mLastSlewFrame = framePosition;
+            mAnchored = true;
+            return;
+        }
+
+        long drift = nanoTime - mAnchorNanos - toNanos(framePosition);
+        mDriftNanos = drift;
+        if (Math.abs(drift) > Math.abs(mMaxDriftNanos)) {
+            mMaxDriftNanos = drift;
+        }
+        if (Math.abs(drift) > mToleranceNanos
+                && framePosition - mLastSlewFrame >= mSampleRate) {
+            long correction = Math.max(-mMaxSlewNanos, Math.min(mMaxSlewNanos, drift));
+            mAnchorNanos += correction;
+            mCorrectionNanos += correction;
+            mLastSlewFrame = framePosition;
+        }
+    }
+
+    /**
+     * Hand out the time of the next frames.
+     *
+     * @param frames  number of frames just read
+     * @param nowNanos current time, only used while no capture timestamp has been seen:
+     *                the frames are then assumed to have just been captured
+     * @return the presentation time of the first of the frames, in nanoseconds
+     */
+    public long next(int frames, long nowNanos) {
+        if (!mAnchored && !mProvisional) {
+            mAnchorNanos = nowNanos - toNanos(mFrames + frames);
+            mProvisional = true;
+        }
+        long time = mAnchorNanos + toNanos(mFrames);
+        // Anchoring and slewing must never make time go back
+        if (time <= mLastNanos) {
+            time = mLastNanos + 1;
+        }
+        mLastNanos = time;
+        mFrames += frames;
+        return time;
+    }
+
+    public boolean isAnchored() {
+        return mAnchored;
+    }
+
+    /**
+     * @return the latest difference between the capture timestamps and the frame
+     * count, positive when the sample clock is slow
+     */
+    public long getDriftNanos() {
+        return mDriftNanos;
+    }
+
+    public long getMaxDriftNanos() {
+        return mMaxDriftNanos;
+    }
+
+    /**
+     * @return how much the anchor has been moved to follow the drift
+     */
+    public long getCorrectionNanos() {
+        return mCorrectionNanos;
+    }
+
+    private long toNanos(long frames) {
+        return frames * 1_000_000_000L / mSampleRate;
+    }
+}
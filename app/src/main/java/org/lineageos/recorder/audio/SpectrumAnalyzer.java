@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.util.Arrays;
+
+/**
+ * Short time spectrum of the captured audio, for display.
+ * <p>
+ * Channels are mixed down and a Hann windowed {@link RealFft} runs every hop. The
+ * level of every bin, in dBFS of a full scale sine, is published through a
+ * sequence lock so readers on any thread copy a consistent spectrum without
+ * blocking the analysis. Nothing is computed while the analyzer is disabled.
+ */
+public final class SpectrumAnalyzer {
+    private static final float SCALE = 1f / 32768f;
+    // Floor of the reported levels, well below the noise of 16 bit audio
+    private static final float MIN_DB = -140f;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFftSize;
+    private final int mHopSize;
+    private final RealFft mFft;
+    private final float[] mWindow;
+    private final float mPowerScale;
+
+    // Last mFftSize mixed samples, oldest at mHistoryPosition
+    private final float[] mHistory;
+    private int mHistoryPosition;
+    private int mSinceHop;
+    private final float[] mWork;
+
+    private final float[] mLevels;
+    private volatile long mSequence;
+    private volatile boolean mEnabled;
+
+    /**
+     * @param fftSize number of samples analyzed at once, a power of two
+     * @param hopSize number of frames between two spectra
+     */
+    public SpectrumAnalyzer(int sampleRate, int channels, int fftSize, int hopSize) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFftSize = fftSize;
+        mHopSize = hopSize;
+        mFft = new RealFft(fftSize);
+
+        mWindow = new float[fftSize];
+        double sum = 0;
+        for (int i = 0; i < fftSize; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+            sum += mWindow[i];
+        }
+        // A sine of amplitude 1 peaks at |X| = sum / 2
+        mPowerScale = (float) (4 / (sum * sum));
+
+        mHistory = new float[fftSize];
+        mWork = new float[fftSize];
+        mLevels = new float[fftSize / 2 + 1];
+        reset();
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void reset() {
+        Arrays.fill(mHistory, 0);
+        mHistoryPosition = 0;
+        mSinceHop = 0;
+        Arrays.fill(mLevels, MIN_DB);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getBinCount() {
+        return mLevels.length;
+    }
+
+    public float getBinFrequency(int bin) {
+        return (float) bin * mSampleRate / mFftSize;
+    }
+
+    /**
+     * @return the number of spectra published so far, a new one is available
+     * when it changes
+     */
+    public long getSequence() {
+        return mSequence >> 1;
+    }
+
+    /**
+     * Analyze a block of interleaved samples. Must be called from a single thread.
+     */
+    public void process(short[] samples, int length) {
+        if (!mEnabled) {
+            return;
+        }
+
+        float scale = SCALE / mChannels;
+        for (int frame = 0; frame + mChannels <= length; frame += mChannels) {
+            int sum = 0;
+            for (int i = frame; i < frame + mChannels; i++) {
+                sum += samples[i];
+            }
+            mHistory[mHistoryPosition] = sum * scale;
+            if (++mHistoryPosition == mFftSize) {
+                mHistoryPosition = 0;
+            }
+            if (++mSinceHop == mHopSize) {
+                mSinceHop = 0;
+                analyze();
+            }
+        }
+    }
+
+    /**
+     * Copy the latest spectrum.
+     *
+     * @param levels receives the level of every bin in dBFS, at least
+     *               {@link #getBinCount()} long
+     * @return the sequence number of the copied spectrum
+     */
+    public long read(float[] levels) {
+        long sequence;
+        int attempts = 0;
+        do {
+            sequence = mSequence;
+            if ((sequence & 1) != 0) {
+                // Being written, try again
+                Thread.yield();
+                continue;
+            }
+            System.arraycopy(mLevels, 0, levels, 0, mLevels.length);
+            if (mSequence == sequence) {
+                break;
+            }
+        } while (++attempts < 4);
+        return sequence >> 1;
+    }
+
+    private void analyze() {
+        float[] work = mWork;
+        int tail = mFftSize - mHistoryPosition;
+        for (int i = 0; i < tail; i++) {
+            work[i] = mHistory[mHistoryPosition + i] * mWindow[i];
+        }
+        for (int i = tail; i < mFftSize; i++) {
+            work[i] = mHistory[i - tail] * mWindow[i];
+        }
+        mFft.transform(work);
+
+        mSequence++;
+        for (int bin = 0; bin < mLevels.length; bin++) {
+            float power = RealFft.power(work, bin, mFftSize) * mPowerScale;
+            mLevels[bin] = power > 0
+                    ? Math.max(MIN_DB, 10f * (float) Math.log10(power)) : MIN_DB;
+        }
+        mSequence++;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sink decorator that drops silent stretches before they reach the file.
+ * <p>
+ * A block is voiced when its mean energy is above the threshold. Once voice stops,
+ * blocks keep passing for the hangover time so word endings and short pauses are
+ * kept. Silent blocks are then held back in a pre-roll ring: when voice resumes,
+ * the ring is flushed first so word onsets are not cut, otherwise its oldest block
+ * is discarded.
+ * <p>
+ * Every discarded stretch is recorded in a gap map so the original timing can be
+ * reconstructed. The map is a list of little endian pairs of 64 bit values, the
+ * frame position in the output where the gap is and the number of frames removed
+ * there. It is stored as a {@link #GAP_CHUNK_ID} chunk when the sink supports
+ * it, otherwise it can be stored with {@link #writeGapMap(WritableByteChannel)}.
+ */
+public final class VoiceActivityGate implements AudioSink {
+    public static final String GAP_CHUNK_ID = "gaps";
+
+    private static final int GAP_ENTRY_SIZE = 16;
+
+    private final AudioSink mSink;
+    private final int mChannels;
+    private final double mThreshold;
+    private final long mHangoverFrames;
+
+    // Pre-roll ring of held back silent blocks
+    private final short[][] mPreRoll;
+    private final int[] mPreRollLengths;
+    private int mPreRollStart;
+    private int mPreRollCount;
+
+    private boolean mOpen;
+    private long mHangoverLeft;
+    private long mWrittenFrames;
+    private long mRemovedFrames;
+    private long mPendingGap;
+
+    private long[] mGaps = new long[32];
+    private int mGapCount;
+    private boolean mGapMapEmbedded;
+
+    /**
+     * @param sink        where the kept blocks are written to, closed with the gate
+     * @param sampleRate  sample rate in Hz
+     * @param channels    number of interleaved channels
+     * @param blockSize   maximum number of samples passed to {@link #write(short[], int)}
+     * @param thresholdDb level in dBFS above which a block counts as voice
+     * @param hangoverMs  how long to keep writing after the last voiced block
+     * @param preRollMs   how much silence to keep before a voiced block
+     */
+    public VoiceActivityGate(AudioSink sink, int sampleRate, int channels, int blockSize,
+                             double thresholdDb, int hangoverMs, int preRollMs) {
+        mSink = sink;
+        mChannels = channels;
+        // Compare mean squares, no logarithm per block
+        double amplitude = 32768 * Math.pow(10, thresholdDb / 20);
+        mThreshold = amplitude * amplitude;
+        mHangoverFrames = (long) sampleRate * hangoverMs / 1000;
+
+        int blockFrames = Math.max(1, blockSize / channels);
+        int preRollBlocks = (int) (((long) sampleRate * preRollMs / 1000 + blockFrames - 1)
+                / blockFrames);
+        mPreRoll = new short[preRollBlocks][blockSize];
+        mPreRollLengths = new int[preRollBlocks];
+
+        // Start open, the first words are often said right away
+        mOpen = true;
+        mHangoverLeft = mHangoverFrames;
+    }
+
+    @Override
+    public void write(short[] samples, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        int frames = length / mChannels;
+        boolean voiced = isVoiced(samples, length);
+
+        if (mOpen) {
+            mSink.write(samples, length);
+            mWrittenFrames += frames;
+            if (voiced) {
+                mHangoverLeft = mHangoverFrames;
+            } else {
+                mHangoverLeft -= frames;
+                mOpen = mHangoverLeft > 0;
+            }
+            return;
+        }
+
+        if (voiced) {
+            closeGap();
+            flushPreRoll();
+            mSink.write(samples, length);
+            mWrittenFrames += frames;
+            mOpen = true;
+            mHangoverLeft = mHangoverFrames;
+            return;
+        }
+
+        hold(samples, length);
+    }
+
+    /**
+     * Sync the sink. Held back silence is not part of the output yet.
+     */
+    @Override
+    public void sync() throws IOException {
+        mSink.sync();
+    }
+
+    /**
+     * @return the size of the output so far, see {@link AudioSink#getLength()}
+     */
+    @Override
+    public long getLength() {
+        return mSink.getLength();
+    }
+
+    @Override
+    public boolean addChunk(String id, ByteBuffer payload) throws IOException {
+        return mSink.addChunk(id, payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // Trailing silence is not worth keeping
+            for (int i = 0; i < mPreRollCount; i++) {
+                mPendingGap += mPreRollLengths[(mPreRollStart + i) % mPreRoll.length]
+                        / mChannels;
+            }
+            mPreRollCount = 0;
+            closeGap();
+
+            if (mGapCount > 0) {
+                ByteBuffer map = ByteBuffer.allocate(mGapCount * GAP_ENTRY_SIZE);
+                putGapMap(map);
+                map.flip();
+                mGapMapEmbedded = mSink.addChunk(GAP_CHUNK_ID, map);
+            }
+        } finally {
+            mSink.close();
+        }
+    }
+
+    /**
+     * @return the number of frames written to the sink
+     */
+    public long getWrittenFrames() {
+        return mWrittenFrames;
+    }
+
+    /**
+     * @return the number of frames that were discarded as silence
+     */
+    public long getRemovedFrames() {
+        return mRemovedFrames + mPendingGap;
+    }
+
+    public int getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * @return whether {@link #close()} stored the gap map inside the output file
+     */
+    public boolean isGapMapEmbedded() {
+        return mGapMapEmbedded;
+    }
+
+    /**
+     * Write the gap map to a separate file, for formats that cannot carry it.
+     */
+    public void writeGapMap(WritableByteChannel channel) throws IOException {
+        ByteBuffer map = ByteBuffer.allocate(mGapCount * GAP_ENTRY_SIZE);
+        putGapMap(map);
+        map.flip();
+        while (map.hasRemaining()) {
+            channel.write(map);
+        }
+    }
+
+    private boolean isVoiced(short[] samples, int length) {
+        long sumSquares = 0;
+        for (int i = 0; i < length; i++) {
+            int sample = samples[i];
+            sumSquares += sample * sample;
+        }
+        return (double) sumSquares / length > mThreshold;
+    }
+
+    private void hold(short[] samples, int length) {
+        if (mPreRoll.length == 0) {
+            mPendingGap += length / mChannels;
+            return;
+        }
+        if (mPreRollCount == mPreRoll.length) {
+            // Evict the oldest held block, it is now part of the gap
+            mPendingGap += mPreRollLengths[mPreRollStart] / mChannels;
+            mPreRollStart = (mPreRollStart + 1) % mPreRoll.length;
+            mPreRollCount--;
+        }
+        int slot = (mPreRollStart + mPreRollCount) % mPreRoll.length;
+        System.arraycopy(samples, 0, mPreRoll[slot], 0, length);
+        mPreRollLengths[slot] = length;
+        mPreRollCount++;
+    }
+
+    private void flushPreRoll() throws IOException {
+        for (int i = 0; i < mPreRollCount; i++) {
+            int slot = (mPreRollStart + i) % mPreRoll.length;
+            mSink.write(mPreRoll[slot], mPreRollLengths[slot]);
+            mWrittenFrames += mPreRollLengths[slot] / mChannels;
+        }
+        mPreRollStart = 0;
+        mPreRollCount = 0;
+    }
+
+    private void closeGap() {
+        if (mPendingGap == 0) {
+            return;
+        }
+        if (mGapCount * 2 == mGaps.length) {
+            long[] gaps = new long[mGaps.length * 2];
+            System.arraycopy(mGaps, 0, gaps, 0, mGaps.length);
+            mGaps = gaps;
+        }
+        mGaps[mGapCount * 2] = mWrittenFrames;
+        mGaps[mGapCount * 2 + 1] = mPendingGap;
+        mGapCount++;
+        mRemovedFrames += mPendingGap;
+        mPendingGap = 0;
+    }
+
+    private void putGapMap(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < mGapCount * 2; i++) {
+            buffer.putLong(mGaps[i]);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Converts an existing 16 bit PCM WAV file to another sample rate.
+ */
+public final class WavResampler {
+    private static final int BLOCK_FRAMES = 4096;
+
+    private WavResampler() {
+    }
+
+    /**
+     * Chunks other than the format and the data are not copied.
+     *
+     * @param in         channel to read the source file from
+     * @param out        channel to write the converted file to, closed once done
+     * @param outputRate sample rate of the converted file in Hz
+     * @return the length of the converted file, or -1 if the source is not a
+     * 16 bit PCM WAV file
+     */
+    public static long convert(FileChannel in, FileChannel out, int outputRate,
+                               Resampler.Quality quality) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(in, header, 0)
+                || header.getInt(0) != 0x46464952 /* RIFF */
+                || header.getInt(8) != 0x45564157 /* WAVE */) {
+            return -1;
+        }
+
+        // Walk the chunks, the data one has to come after the format
+        ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 12;
+        int sampleRate = 0;
+        int channels = 0;
+        long dataLength;
+        while (true) {
+            chunk.clear().limit(8);
+            if (!readFully(in, chunk, position)) {
+                return -1;
+            }
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xffffffffL;
+            position += 8;
+            if (id == 0x20746d66 /* fmt  */) {
+                chunk.clear().limit(16);
+                if (size < 16 || !readFully(in, chunk, position)) {
+                    return -1;
+                }
+                int format = chunk.getShort(0) & 0xffff;
+                channels = chunk.getShort(2);
+                sampleRate = chunk.getInt(4);
+                // Extensible headers are only accepted for plain PCM layouts
+                if ((format != 1 && format != 0xfffe) || chunk.getShort(14) != 16
+                        || channels < 1 || sampleRate <= 0) {
+                    return -1;
+                }
+            } else if (id == 0x61746164 /* data */) {
+                if (channels == 0) {
+                    return -1;
+                }
+                // Writers that were never closed leave a zero size behind
+                long available = in.size() - position;
+                dataLength = size == 0 || size > available ? available : size;
+                break;
+            }
+            position += size + (size & 1);
+        }
+
+        int blockSize = BLOCK_FRAMES * channels;
+        Resampler resampler = new Resampler(sampleRate, outputRate, channels, quality,
+                BLOCK_FRAMES);
+        ByteBuffer bytes = ByteBuffer.allocate(blockSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+        short[] samples = new short[blockSize];
+        WavWriter writer = new WavWriter(out, outputRate, channels, 16);
+        try (AudioSink sink = new ResamplingSink(writer, resampler, blockSize)) {
+            long end = position + dataLength - dataLength % (2 * channels);
+            while (position < end) {
+                bytes.clear();
+                bytes.limit((int) Math.min(bytes.capacity(), end - position));
+                if (!readFully(in, bytes, position)) {
+                    break;
+                }
+                position += bytes.limit();
+                bytes.flip();
+                int length = bytes.remaining() / 2;
+                bytes.asShortBuffer().get(samples, 0, length);
+                sink.write(samples, length);
+            }
+        }
+        return writer.getLength();
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+}
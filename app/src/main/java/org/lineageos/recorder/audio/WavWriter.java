@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming RIFF/WAVE writer.
+ * <p>
+ * A placeholder header is written when the writer is created, PCM data is appended
+ * as it is captured and the RIFF and data chunk sizes are patched in place on
+ * {@link #close()}, so finalizing a recording takes constant time. Extra chunks
+ * can be appended after the data with {@link #addChunk(String, ByteBuffer)}.
+ */
+public final class WavWriter implements AudioSink {
+    public static final String EXTENSION = ".wav";
+    public static final String MIME_TYPE = "audio/x-wav";
+
+    private static final int HEADER_SIZE = 44;
+    private static final long MAX_DATA_LENGTH = 0xffffffffL - HEADER_SIZE;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mBitsPerSample;
+    private long mDataLength;
+    private long mTrailerLength;
+    private ByteBuffer mBuffer;
+
+    public WavWriter(FileChannel channel, int sampleRate, int channels,
+                     int bitsPerSample) throws IOException {
+        mChannel = channel;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mBitsPerSample = bitsPerSample;
+        mHeader = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Sizes are unknown until the recording stops
+        writeHeader(0);
+        mChannel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void write(short[] samples, int length) throws IOException {
+        if (mBuffer == null || mBuffer.capacity() < length * 2) {
+            mBuffer = ByteBuffer.allocate(length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mBuffer.clear();
+        for (int i = 0; i < length; i++) {
+            mBuffer.putShort(samples[i]);
+        }
+        mBuffer.flip();
+        write(mBuffer);
+    }
+
+    /**
+     * Append all the remaining bytes of the given buffer to the data chunk.
+     */
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        if (mTrailerLength > 0) {
+            throw new IllegalStateException("Data written after a trailing chunk");
+        }
+        while (buffer.hasRemaining()) {
+            mDataLength += mChannel.write(buffer);
+        }
+    }
+
+    public long getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Patch the header for the data written so far and flush it to storage.
+     */
+    @Override
+    public void sync() throws IOException {
+        writeHeader(Math.min(mDataLength, MAX_DATA_LENGTH));
+        mChannel.force(false);
+    }
+
+    /**
+     * Append a chunk after the data chunk. No audio can be written afterwards.
+     */
+    @Override
+    public boolean addChunk(String id, ByteBuffer payload) throws IOException {
+        if (mTrailerLength == 0) {
+            padData();
+            // The data is complete, recover() tells it from the chunks by this length
+            writeHeader(Math.min(mDataLength, MAX_DATA_LENGTH));
+        }
+        int size = payload.remaining();
+        ByteBuffer chunk = ByteBuffer.allocate(8 + size + (size & 1))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 4; i++) {
+            chunk.put((byte) id.charAt(i));
+        }
+        chunk.putInt(size);
+        chunk.put(payload);
+        chunk.position(chunk.capacity());
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            mTrailerLength += mChannel.write(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the complete file, header and trailing chunks included
+     */
+    @Override
+    public long getLength() {
+        return HEADER_SIZE + mDataLength + (mDataLength & 1) + mTrailerLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mTrailerLength == 0) {
+                padData();
+            }
+            writeHeader(Math.min(mDataLength, MAX_DATA_LENGTH));
+            mChannel.force(false);
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Repair a file left behind by a writer that was never closed: everything that
+     * reached the file after the header becomes the data chunk, unless the writer
+     * was already appending trailing chunks. A file that was closed is left alone.
+     * <p>
+     * Descriptors of media items only come as separate input and output streams,
+     * both channels may be the same.
+     *
+     * @param in  channel to read the file from
+     * @param out channel to write the file with
+     * @return the length of the repaired file, or -1 if it is not one of ours
+     */
+    public static long recover(FileChannel in, FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 0;
+        while (header.hasRemaining()) {
+            int read = in.read(header, position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+        }
+        if (header.getInt(0) != 0x46464952 /* RIFF */
+                || header.getInt(8) != 0x45564157 /* WAVE */
+                || header.getInt(36) != 0x61746164 /* data */) {
+            return -1;
+        }
+
+        long size = in.size();
+        if ((header.getInt(4) & 0xffffffffL) + 8 == size) {
+            // Closed, only the journal did not hear about it
+            return size;
+        }
+
+        long dataLength = header.getInt(40) & 0xffffffffL;
+        long trailerEnd = findChunksEnd(in, HEADER_SIZE + dataLength + (dataLength & 1), size);
+        if (trailerEnd > 0) {
+            // The data chunk was complete, keep the trailing chunks that are
+            out.truncate(trailerEnd);
+            header.putInt(4, (int) (trailerEnd - 8));
+        } else {
+            // Drop a partially written frame
+            int blockAlign = Math.max(1, header.getShort(32));
+            dataLength = size - HEADER_SIZE;
+            dataLength = Math.min(dataLength - dataLength % blockAlign, MAX_DATA_LENGTH);
+            out.truncate(HEADER_SIZE + dataLength);
+            trailerEnd = HEADER_SIZE + dataLength;
+
+            header.putInt(4, (int) (HEADER_SIZE - 8 + dataLength));
+            header.putInt(40, (int) dataLength);
+        }
+        header.rewind();
+        position = 0;
+        while (header.hasRemaining()) {
+            position += out.write(header, position);
+        }
+        out.force(false);
+        return trailerEnd;
+    }
+
+    /**
+     * Walk the chunks from a position to the end of the file.
+     *
+     * @return the end of the last complete chunk, or -1 if what follows the
+     * position is not a sequence of chunks
+     */
+    private static long findChunksEnd(FileChannel in, long position, long size)
+            throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        long end = -1;
+        while (position + 8 <= size) {
+            chunk.clear();
+            while (chunk.hasRemaining()) {
+                if (in.read(chunk, position + chunk.position()) < 0) {
+                    return -1;
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                byte c = chunk.get(i);
+                if (c < 0x20 || c > 0x7e) {
+                    return -1;
+                }
+            }
+            long chunkSize = chunk.getInt(4) & 0xffffffffL;
+            long next = position + 8 + chunkSize + (chunkSize & 1);
+            if (next > size) {
+                // Cut short while it was being appended
+                break;
+            }
+            end = next;
+            position = next;
+        }
+        return end;
+    }
+
+    private void padData() throws IOException {
+        if ((mDataLength & 1) != 0) {
+            // RIFF chunks are word aligned
+            mChannel.write(ByteBuffer.wrap(new byte[1]));
+        }
+    }
+
+    private void writeHeader(long dataLength) throws IOException {
+        int blockAlign = mChannels * mBitsPerSample / 8;
+        long paddedLength = dataLength + (dataLength & 1);
+
+        mHeader.clear();
+        mHeader.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        mHeader.putInt((int) (HEADER_SIZE - 8 + paddedLength + mTrailerLength));
+        mHeader.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        mHeader.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        mHeader.putInt(16); // size of 'fmt ' chunk
+        mHeader.putShort((short) 1); // PCM
+        mHeader.putShort((short) mChannels);
+        mHeader.putInt(mSampleRate);
+        mHeader.putInt(mSampleRate * blockAlign); // byte rate
+        mHeader.putShort((short) blockAlign);
+        mHeader.putShort((short) mBitsPerSample);
+        mHeader.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        mHeader.putInt((int) dataLength);
+        mHeader.flip();
+
+        long position = 0;
+        while (mHeader.hasRemaining()) {
+            position += mChannel.write(mHeader, position);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A unit of work run by the {@link PostProcessor} after a recording. Everything a
+ * job needs is in its arguments so it can be stored and run again by a later
+ * process.
+ */
+public final class Job {
+    private static final String KEY_ID = "id";
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_CREATED = "created";
+    private static final String KEY_ARGS = "args";
+
+    private final long mId;
+    private final String mType;
+    // Wall clock, the job may be resumed by another process
+    private final long mCreatedAt;
+    private final JSONObject mArgs;
+
+    private Job(long id, String type, long createdAt, JSONObject args) {
+        mId = id;
+        mType = type;
+        mCreatedAt = createdAt;
+        mArgs = args;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    @NonNull
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * @return when the job was submitted, in milliseconds since the epoch
+     */
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    @Nullable
+    public String getString(String key) {
+        return mArgs.isNull(key) ? null : mArgs.optString(key);
+    }
+
+    public long getLong(String key) {
+        return mArgs.optLong(key);
+    }
+
+    public boolean getBoolean(String key) {
+        return mArgs.optBoolean(key);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mType + " #" + mId;
+    }
+
+    String toJson() {
+        try {
+            return new JSONObject()
+                    .put(KEY_ID, mId)
+                    .put(KEY_TYPE, mType)
+                    .put(KEY_CREATED, mCreatedAt)
+                    .put(KEY_ARGS, mArgs)
+                    .toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Job fromJson(String json) throws JSONException {
+        JSONObject object = new JSONObject(json);
+        return new Job(object.getLong(KEY_ID), object.getString(KEY_TYPE),
+                object.getLong(KEY_CREATED), object.getJSONObject(KEY_ARGS));
+    }
+
+    public static final class Builder {
+        private final String mType;
+        private final JSONObject mArgs = new JSONObject();
+
+        /**
+         * @param type type of a handler known to the {@link PostProcessor}
+         */
+        public Builder(@NonNull String type) {
+            mType = type;
+        }
+
+        public Builder putString(String key, @Nullable String value) {
+            return put(key, value == null ? JSONObject.NULL : value);
+        }
+
+        public Builder putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        public Builder putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        private Builder put(String key, Object value) {
+            try {
+                mArgs.put(key, value);
+            } catch (JSONException e) {
+                // Only thrown for null keys and non finite numbers
+                throw new IllegalArgumentException(e);
+            }
+            return this;
+        }
+
+        Job build(long id, long createdAt) {
+            return new Job(id, mType, createdAt, mArgs);
+        }
+    }
+}
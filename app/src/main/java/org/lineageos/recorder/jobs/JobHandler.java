@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.jobs;
+
+import android.content.Context;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+
+/**
+ * Does the work of one type of {@link Job}. Handlers are shared by all the jobs of
+ * their type and called from several worker threads at once.
+ */
+public interface JobHandler {
+
+    /**
+     * Run a job. Long running handlers should report their progress and check for
+     * cancellation regularly with {@link JobProgress#throwIfCancelled()}.
+     *
+     * @throws IOException if the job failed, it is not retried
+     */
+    @WorkerThread
+    void run(Context context, Job job, JobProgress progress) throws IOException;
+
+    /**
+     * Undo what a cancelled job left behind. Called instead of {@link #run} when the
+     * job is cancelled before it starts.
+     */
+    @WorkerThread
+    default void onCancelled(Context context, Job job) {
+    }
+}
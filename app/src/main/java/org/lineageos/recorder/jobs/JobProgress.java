@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.jobs;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Progress reporting and cancellation of a running {@link Job}.
+ */
+public final class JobProgress {
+    private final PostProcessor mProcessor;
+    private final Job mJob;
+    private volatile boolean mCancelled;
+    private int mPercent = -1;
+
+    JobProgress(PostProcessor processor, Job job) {
+        mProcessor = processor;
+        mJob = job;
+    }
+
+    /**
+     * @param percent how much of the job is done, listeners only hear about changes
+     */
+    public void setProgress(int percent) {
+        if (percent != mPercent) {
+            mPercent = percent;
+            mProcessor.onProgress(mJob, percent);
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws CancellationException if the job has been cancelled, leave it
+     *                               propagate out of {@link JobHandler#run}
+     */
+    public void throwIfCancelled() {
+        if (mCancelled) {
+            throw new CancellationException(mJob + " cancelled");
+        }
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+}
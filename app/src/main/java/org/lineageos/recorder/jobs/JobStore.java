@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.jobs;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Jobs that have not finished yet, kept until they have. Like the recording
+ * journal every change is committed synchronously.
+ */
+class JobStore {
+    private static final String TAG = "JobStore";
+    private static final String PREFS = "post_processing_jobs";
+    private static final String KEY_NEXT_ID = "next_id";
+    private static final String KEY_JOB_PREFIX = "job_";
+
+    private final SharedPreferences mPrefs;
+
+    JobStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, 0);
+    }
+
+    synchronized long nextId() {
+        long id = mPrefs.getLong(KEY_NEXT_ID, 1);
+        mPrefs.edit().putLong(KEY_NEXT_ID, id + 1).commit();
+        return id;
+    }
+
+    void put(Job job) {
+        mPrefs.edit().putString(KEY_JOB_PREFIX + job.getId(), job.toJson()).commit();
+    }
+
+    void remove(Job job) {
+        mPrefs.edit().remove(KEY_JOB_PREFIX + job.getId()).commit();
+    }
+
+    /**
+     * @return the stored jobs, oldest first
+     */
+    List<Job> getAll() {
+        List<Job> jobs = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_JOB_PREFIX)) {
+                continue;
+            }
+            try {
+                jobs.add(Job.fromJson((String) entry.getValue()));
+            } catch (JSONException | ClassCastException e) {
+                Log.w(TAG, "Dropping unreadable job " + entry.getKey(), e);
+                mPrefs.edit().remove(entry.getKey()).commit();
+            }
+        }
+        jobs.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+        return jobs;
+    }
+}
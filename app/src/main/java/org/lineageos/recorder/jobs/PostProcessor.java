@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.jobs;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work that follows a recording on a pool of background threads, one per
+ * core, so several recordings stopped together are processed side by side.
+ * <p>
+ * Jobs are stored until they finish: the ones a dead process left behind are run
+ * again by {@link #resumePending()}. Handlers must therefore be safe to run twice.
+ */
+public final class PostProcessor {
+    private static final String TAG = "PostProcessor";
+    private static final int MAX_STATS = 32;
+
+    public enum Outcome {
+        DONE,
+        FAILED,
+        CANCELLED,
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        default void onJobProgress(@NonNull Job job, int percent) {
+        }
+
+        void onJobFinished(@NonNull Job job, @NonNull Outcome outcome);
+    }
+
+    public static final class JobStats {
+        public final String type;
+        public final long id;
+        public final long waitMillis;
+        public final long runMillis;
+        public final Outcome outcome;
+
+        JobStats(Job job, long waitMillis, long runMillis, Outcome outcome) {
+            this.type = job.getType();
+            this.id = job.getId();
+            this.waitMillis = waitMillis;
+            this.runMillis = runMillis;
+            this.outcome = outcome;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return type + " #" + id + " " + outcome + " waited " + waitMillis
+                    + " ms, ran " + runMillis + " ms";
+        }
+    }
+
+    private static PostProcessor sInstance;
+
+    private final Context mContext;
+    private final JobStore mStore;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, JobHandler> mHandlers = new HashMap<>();
+    // Jobs submitted or resumed and not finished yet, guarded by this
+    private final Map<Long, JobProgress> mActive = new HashMap<>();
+    private final Map<Long, Listener> mListeners = new HashMap<>();
+    private final ArrayDeque<JobStats> mStats = new ArrayDeque<>();
+    private boolean mResumed;
+
+    private PostProcessor(Context context) {
+        mContext = context.getApplicationContext();
+        mStore = new JobStore(mContext);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, TAG + "-" + count.incrementAndGet());
+            return thread;
+        });
+        // Idle workers are not worth keeping between recordings
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        register(PublishJob.TYPE, new PublishJob());
+    }
+
+    public static synchronized PostProcessor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PostProcessor(context);
+        }
+        return sInstance;
+    }
+
+    public synchronized void register(String type, JobHandler handler) {
+        mHandlers.put(type, handler);
+    }
+
+    /**
+     * Store a job and queue it.
+     *
+     * @param listener notified of the progress and the end of the job, may be null
+     * @return the id of the job, to {@link #cancel(long)} it
+     */
+    public long submit(@NonNull Job.Builder builder, @Nullable Listener listener) {
+        Job job = builder.build(mStore.nextId(), System.currentTimeMillis());
+        mStore.put(job);
+        enqueue(job, listener);
+        return job.getId();
+    }
+
+    /**
+     * Queue the jobs a previous process did not finish. Only the first call does
+     * anything, the jobs of this process are already queued.
+     */
+    @MainThread
+    public void resumePending() {
+        synchronized (this) {
+            if (mResumed) {
+                return;
+            }
+            mResumed = true;
+        }
+        mExecutor.execute(() -> {
+            for (Job job : mStore.getAll()) {
+                synchronized (this) {
+                    if (mActive.containsKey(job.getId())) {
+                        continue;
+                    }
+                }
+                Log.i(TAG, "Resuming " + job);
+                enqueue(job, null);
+            }
+        });
+    }
+
+    /**
+     * Cancel a job: it is dropped if it has not started yet, or stopped at the
+     * next cancellation check of its handler.
+     *
+     * @return false if the job is unknown or already finished
+     */
+    public synchronized boolean cancel(long id) {
+        JobProgress progress = mActive.get(id);
+        if (progress == null) {
+            return false;
+        }
+        progress.cancel();
+        return true;
+    }
+
+    public synchronized boolean isActive(long id) {
+        return mActive.containsKey(id);
+    }
+
+    /**
+     * @return timings of the latest finished jobs, oldest first
+     */
+    public synchronized List<JobStats> getRecentStats() {
+        return Collections.unmodifiableList(new ArrayList<>(mStats));
+    }
+
+    void onProgress(Job job, int percent) {
+        Listener listener;
+        synchronized (this) {
+            listener = mListeners.get(job.getId());
+        }
+        if (listener != null) {
+            mMainHandler.post(() -> listener.onJobProgress(job, percent));
+        }
+    }
+
+    private void enqueue(Job job, @Nullable Listener listener) {
+        JobProgress progress = new JobProgress(this, job);
+        synchronized (this) {
+            mActive.put(job.getId(), progress);
+            if (listener != null) {
+                mListeners.put(job.getId(), listener);
+            }
+        }
+        long queuedAt = SystemClock.elapsedRealtime();
+        mExecutor.execute(() -> execute(job, progress, queuedAt));
+    }
+
+    private void execute(Job job, JobProgress progress, long queuedAt) {
+        long startedAt = SystemClock.elapsedRealtime();
+        JobHandler handler;
+        synchronized (this) {
+            handler = mHandlers.get(job.getType());
+        }
+
+        Outcome outcome;
+        if (handler == null) {
+            Log.e(TAG, "No handler for " + job);
+            outcome = Outcome.FAILED;
+        } else if (progress.isCancelled()) {
+            handler.onCancelled(mContext, job);
+            outcome = Outcome.CANCELLED;
+        } else {
+            try {
+                handler.run(mContext, job, progress);
+                outcome = Outcome.DONE;
+            } catch (CancellationException e) {
+                handler.onCancelled(mContext, job);
+                outcome = Outcome.CANCELLED;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to run " + job, e);
+                outcome = Outcome.FAILED;
+            }
+        }
+        mStore.remove(job);
+
+        JobStats stats = new JobStats(job, startedAt - queuedAt,
+                SystemClock.elapsedRealtime() - startedAt, outcome);
+        Log.d(TAG, stats.toString());
+        Listener listener;
+        synchronized (this) {
+            mActive.remove(job.getId());
+            listener = mListeners.remove(job.getId());
+            if (mStats.size() == MAX_STATS) {
+                mStats.removeFirst();
+            }
+            mStats.addLast(stats);
+        }
+        if (listener != null) {
+            Outcome result = outcome;
+            mMainHandler.post(() -> listener.onJobFinished(job, result));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.jobs;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import org.lineageos.recorder.utils.MediaProviderHelper;
+
+import java.io.IOException;
+
+/**
+ * Marks a finished recording as no longer pending so other apps can see it.
+ */
+public final class PublishJob implements JobHandler {
+    public static final String TYPE = "publish";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_SIZE = "size";
+
+    public static Job.Builder builder(@NonNull Uri uri, long duration, long size) {
+        return new Job.Builder(TYPE)
+                .putString(KEY_URI, uri.toString())
+                .putLong(KEY_DURATION, duration)
+                .putLong(KEY_SIZE, size);
+    }
+
+    @NonNull
+    public static Uri getUri(@NonNull Job job) {
+        return Uri.parse(job.getString(KEY_URI));
+    }
+
+    @Override
+    public void run(Context context, Job job, JobProgress progress) throws IOException {
+        progress.setProgress(0);
+        if (!MediaProviderHelper.publishNow(context.getContentResolver(), getUri(job),
+                job.getLong(KEY_DURATION), job.getLong(KEY_SIZE))) {
+            throw new IOException("Could not publish " + getUri(job));
+        }
+        progress.setProgress(100);
+    }
+
+    @Override
+    public void onCancelled(Context context, Job job) {
+        MediaProviderHelper.remove(context.getContentResolver(), getUri(job));
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.screen;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import org.lineageos.recorder.utils.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Owns a {@link MediaMuxer} on a thread of its own.
+ * <p>
+ * Every track has a bounded single producer, single consumer queue the encoder
+ * feeding it copies its samples into, so encoder buffers go back right away and
+ * no lock is shared with the encoders. The writer starts the muxer once every
+ * track has a format, interleaves the samples by presentation time and finalizes
+ * the file once every track has ended.
+ */
+public final class MuxerWriter {
+    private static final String TAG = "MuxerWriter";
+    // Safety net only, producers and close() wake the threads up
+    private static final long PARK_NANOS = 100_000_000L;
+
+    private final MediaMuxer mMuxer;
+    private final Track[] mTracks;
+    private final OnFinishedListener mOnFinished;
+    private final Thread mThread;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private volatile boolean mClosed;
+    private volatile boolean mStarted;
+    private volatile boolean mFinished;
+
+    /**
+     * @param queueCapacity samples each track can have waiting for the writer
+     * @param onFinished    called on the writer thread once the muxer has been released
+     * @param tracks        names of the tracks, a track is referred to by its index
+     */
+    public MuxerWriter(MediaMuxer muxer, int queueCapacity, OnFinishedListener onFinished,
+                       String... tracks) {
+        mMuxer = muxer;
+        mOnFinished = onFinished;
+        mTracks = new Track[tracks.length];
+        int capacity = Integer.highestOneBit(Math.max(2, queueCapacity) - 1) << 1;
+        for (int i = 0; i < tracks.length; i++) {
+            mTracks[i] = new Track(tracks[i], capacity);
+        }
+        mThread = new Thread(this::run, TAG);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Set the format of a track, before any of its samples is written.
+     */
+    public void setFormat(int track, MediaFormat format) {
+        mTracks[track].mFormat = format;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Queue a copy of an encoded sample. Only the thread of the encoder feeding the
+     * track may call this. Waits while the queue of the track is full, once the
+     * muxer has started; until then the sample is dropped instead, the other tracks
+     * may never get a format.
+     */
+    public void write(int index, ByteBuffer data, MediaCodec.BufferInfo info) {
+        Track track = mTracks[index];
+        long tail = track.mTail;
+        if (tail - track.mHead == track.mSlots.length) {
+            if (!mStarted) {
+                track.mDropped.incrementAndGet();
+                LockSupport.unpark(mThread);
+                return;
+            }
+            track.mStalls.incrementAndGet();
+            track.mProducerWaiter = Thread.currentThread();
+            while (tail - track.mHead == track.mSlots.length && !mFinished) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            track.mProducerWaiter = null;
+        }
+        if (mFinished) {
+            track.mDropped.incrementAndGet();
+            return;
+        }
+
+        track.mSlots[(int) (tail & track.mMask)].set(data, info);
+        track.mTail = tail + 1;
+        int depth = (int) (tail + 1 - track.mHead);
+        if (depth > track.mMaxDepth) {
+            track.mMaxDepth = depth;
+        }
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Signal the end of a track, once all of its samples have been written.
+     */
+    public void end(int track) {
+        mTracks[track].mEnded = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * No more samples are coming, tracks that have not ended included: write what
+     * is queued and finalize the file.
+     */
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "muxer: " + (mFinished ? "finished" : mStarted ? "started"
+                : "waiting for formats"));
+        for (Track track : mTracks) {
+            pw.println(prefix + track.mName + " queue: depth " + (track.mTail - track.mHead)
+                    + "/" + track.mSlots.length + ", max " + track.mMaxDepth
+                    + ", full stalls " + track.mStalls.get()
+                    + ", dropped " + track.mDropped.get());
+            pw.println(prefix + track.mName + " muxed: " + track.mSamples.get()
+                    + " samples, " + track.mBytes.get() + " bytes");
+            pw.println(prefix + track.mName + " write latency: " + track.mWriteLatency);
+        }
+    }
+
+    private void run() {
+        boolean written = false;
+        try {
+            if (awaitFormats()) {
+                for (Track track : mTracks) {
+                    track.mMuxerTrack = mMuxer.addTrack(track.mFormat);
+                }
+                mMuxer.start();
+                mStarted = true;
+                writeAll();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to write the file", e);
+        } finally {
+            mFinished = true;
+            for (Track track : mTracks) {
+                LockSupport.unpark(track.mProducerWaiter);
+            }
+            try {
+                // Stopping a muxer without samples fails, and releasing a started
+                // muxer stops it
+                if (mStarted && hasSamples()) {
+                    mMuxer.stop();
+                    written = true;
+                }
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to finalize the file", e);
+            }
+            try {
+                mMuxer.release();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to release the muxer", e);
+            }
+            mOnFinished.onFinished(written);
+        }
+    }
+
+    private boolean hasSamples() {
+        for (Track track : mTracks) {
+            if (track.mSamples.get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the writer was closed before every track had a format
+     */
+    private boolean awaitFormats() {
+        while (true) {
+            boolean known = true;
+            for (Track track : mTracks) {
+                if (track.mFormat == null) {
+                    known = false;
+                } else if (track.mTail - track.mHead == track.mSlots.length) {
+                    // The other track may be late, keep the newest samples of this one
+                    track.mDropped.incrementAndGet();
+                    track.consume();
+                }
+            }
+            if (known) {
+                return true;
+            }
+            if (mClosed) {
+                return false;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+    }
+
+    private void writeAll() {
+        while (true) {
+            Track next = null;
+            boolean waiting = false;
+            boolean done = true;
+            boolean closed = mClosed;
+            for (Track track : mTracks) {
+                // Read the end before the queue, it is set after the last sample
+                boolean ended = track.mEnded || closed;
+                if (track.mHead == track.mTail) {
+                    // A live track may still produce an earlier sample
+                    waiting |= !ended;
+                    done &= ended;
+                    continue;
+                }
+                done = false;
+                if (next == null || track.peek().mPtsUs < next.peek().mPtsUs) {
+                    next = track;
+                }
+            }
+            if (done) {
+                return;
+            }
+            // Do not let a stalled track hold the others back for long
+            if (next != null && (!waiting || next.isHalfFull())) {
+                write(next);
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    private void write(Track track) {
+        Sample sample = track.peek();
+        mInfo.set(0, sample.mSize, sample.mPtsUs, sample.mFlags);
+        sample.mData.position(0);
+        sample.mData.limit(sample.mSize);
+        long start = System.nanoTime();
+        mMuxer.writeSampleData(track.mMuxerTrack, sample.mData, mInfo);
+        track.mWriteLatency.record(System.nanoTime() - start);
+        track.mSamples.incrementAndGet();
+        track.mBytes.addAndGet(sample.mSize);
+        track.consume();
+    }
+
+    public interface OnFinishedListener {
+        /**
+         * @param written whether the file was finalized, it has no content otherwise
+         */
+        void onFinished(boolean written);
+    }
+
+    private static final class Track {
+        private final String mName;
+        private final Sample[] mSlots;
+        private final int mMask;
+        // Next sample to write, only advanced by the writer
+        private volatile long mHead;
+        // Next slot to fill, only advanced by the producer
+        private volatile long mTail;
+        private volatile MediaFormat mFormat;
+        private volatile boolean mEnded;
+        private volatile Thread mProducerWaiter;
+        private int mMuxerTrack = -1;
+
+        private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+        private final AtomicLong mSamples = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mStalls = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private volatile int mMaxDepth;
+
+        Track(String name, int capacity) {
+            mName = name;
+            mSlots = new Sample[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mSlots[i] = new Sample();
+            }
+            mMask = capacity - 1;
+        }
+
+        Sample peek() {
+            return mSlots[(int) (mHead & mMask)];
+        }
+
+        boolean isHalfFull() {
+            return mTail - mHead >= mSlots.length / 2;
+        }
+
+        void consume() {
+            mHead++;
+            LockSupport.unpark(mProducerWaiter);
+        }
+    }
+
+    private static final class Sample {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+        private ByteBuffer mData = EMPTY;
+        private int mSize;
+        private long mPtsUs;
+        private int mFlags;
+
+        void set(ByteBuffer data, MediaCodec.BufferInfo info) {
+            // Slots keep their buffer, only key frames should ever make it grow
+            if (mData.capacity() < info.size) {
+                mData = ByteBuffer.allocateDirect(info.size);
+            }
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+            mData.clear();
+            mData.put(data);
+            mSize = info.size;
+            mPtsUs = info.presentationTimeUs;
+            mFlags = info.flags;
+        }
+    }
+}
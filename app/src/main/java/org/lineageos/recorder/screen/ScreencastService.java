@@ -32,6 +32,7 @@ import android.hardware.display.VirtualDisplay;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
@@ -41,8 +42,12 @@ import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
+import android.os.Debug;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.StatFs;
 import android.os.SystemClock;
 import android.text.format.DateUtils;
@@ -52,25 +57,37 @@ import android.view.Surface;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
 import org.lineageos.recorder.R;
 import org.lineageos.recorder.RecorderActivity;
+import org.lineageos.recorder.audio.PcmMixer;
+import org.lineageos.recorder.audio.SampleClock;
+import org.lineageos.recorder.jobs.PostProcessor;
 import org.lineageos.recorder.utils.LastRecordHelper;
+import org.lineageos.recorder.utils.LatencyHistogram;
 import org.lineageos.recorder.utils.MediaProviderHelper;
+import org.lineageos.recorder.utils.PipelineMetrics;
+import org.lineageos.recorder.utils.RecordingClock;
+import org.lineageos.recorder.utils.Ticker;
 import org.lineageos.recorder.utils.Utils;
 
 import java.nio.ByteBuffer;
-import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ScreencastService extends Service implements MediaProviderHelper.OnContentWritten {
+public class ScreencastService extends Service implements MediaProviderHelper.OnContentWritten,
+        RecordingClock {
     private static final String LOGTAG = "ScreencastService";
 
     private static final String SCREENCAST_NOTIFICATION_CHANNEL =
@@ -92,42 +109,87 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
             "org.lineageos.recorder.server.display.STOP_SCAN";
 
     private static final int TOTAL_NUM_TRACKS = 1;
+    // Samples of an AAC frame, the audio encoder is fed whole frames of 16 bit mono
     private static final int SAMPLES_PER_FRAME = 1024;
+    private static final int AUDIO_INPUT_BYTES = SAMPLES_PER_FRAME * 2;
     private static final int AUDIO_BIT_RATE = 128000;
     private static int AUDIO_CHANNEL_TYPE;
     private static int AUDIO_SAMPLE_RATE = 44100;
     private static int VIDEO_BIT_RATE;
     private static int VIDEO_FRAME_RATE;
 
+    private static final long NOTIFICATION_UPDATE_INTERVAL = 1000L;
+    private static final long ENCODER_DRAIN_TIMEOUT_MS = 2000L;
+    private static final long AUDIO_INPUT_TIMEOUT_MS = 1000L;
+    // Audio may drift this far from the video before its timestamps are slewed, by
+    // at most a millisecond per second
+    private static final long AUDIO_DRIFT_TOLERANCE_NS = 10_000_000L;
+    private static final long AUDIO_MAX_SLEW_NS = 1_000_000L;
+    // Encoded samples each track can have waiting for the muxer, every slot keeps a
+    // buffer as large as the largest frame it held: about a second of video
+    private static final int MUXER_QUEUE_CAPACITY = 32;
+    private static final int TRACK_VIDEO = 0;
+    private static final int TRACK_AUDIO = 1;
+    // The microphone is queued for the mixer: it lags the system audio by the target
+    // fill, which leaves room for its reads to come in bursts and its clock to drift
+    private static final int MIX_QUEUE_SAMPLES = 65536;
+    private static final int MIX_TARGET_SAMPLES = 2048;
+    private static final int MIX_TOLERANCE_SAMPLES = 1024;
+    private static final double MIX_INTERNAL_GAIN_DB = -3;
+    private static final double MIX_MICROPHONE_GAIN_DB = 0;
+
     public static final int NOTIFICATION_ID = 61;
     private long mStartTime;
-    private Timer mTimer;
+    private volatile long mStopTime;
+    // Timestamps of the encoded video, when we run the encoder ourselves
+    private volatile long mFirstVideoPtsUs = -1;
+    private volatile long mLastVideoPtsUs;
+    private final Runnable mNotificationUpdater = this::updateNotification;
     private NotificationCompat.Builder mBuilder;
     private MediaProjectionManager mMediaProjectionManager;
     private MediaProjection mMediaProjection;
     private Surface mInputSurface;
     private VirtualDisplay mVirtualDisplay;
     private MediaRecorder mMediaRecorder;
-    private MediaMuxer mMuxer;
+    private MuxerWriter mMuxerWriter;
     private MediaCodec mVideoEncoder;
     private MediaCodec mAudioEncoder;
-    private MediaCodec.BufferInfo mVideoBufferInfo;
     private NotificationManager mNotificationManager;
     private int mAudioSource;
     private int mAudioBufferBytes;
     private AudioRecord mInternalAudio;
-    private boolean mMuxerStarted = false;
-    private boolean mAudioRecording;
-    private boolean mAudioEncoding;
-    private boolean mVideoEncoding;
+    private AudioRecord mMicrophoneAudio;
+    private volatile PcmMixer mMixer;
+    // Only touched on the encoder thread once the encoders have started
+    private int mEncodersRunning;
+    private volatile boolean mAudioRecording;
+    private Thread mAudioThread;
+    private Thread mMicrophoneThread;
     private boolean mVideoRecording;
-    private File mPath;
-    private int videoTrackIndex = -1;
-    private int audioTrackIndex = -1;
-    private final Object mMuxerLock = new Object();
-    private final Object mAudioEncoderLock = new Object();
-    private final Object mWriteVideoLock = new Object();
-    private final Object mWriteAudioLock = new Object();
+    private Uri mRecordingUri;
+    private ParcelFileDescriptor mRecordingFd;
+    // Both encoders call back on this thread, the muxer only runs there
+    private HandlerThread mEncoderThread;
+    private Handler mEncoderHandler;
+    // Input buffers handed out by the audio encoder, for the audio recorder thread
+    private final BlockingQueue<Integer> mAudioInputBuffers = new LinkedBlockingQueue<>();
+    private final Runnable mDrainTimeout = () -> {
+        Log.w(LOGTAG, "Encoders did not reach the end of stream, closing the file anyway");
+        finishEncoding();
+    };
+    private volatile long mEncoderCpuNanos;
+    private volatile long mAudioCaptureCpuNanos;
+    private volatile long mMicrophoneCaptureCpuNanos;
+    private volatile SampleClock mAudioClock;
+    // Pipeline health for dumpsys, started over for every recording
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private final AtomicLong mAudioReads = mMetrics.counter("audio reads");
+    private final AtomicLong mShortReads = mMetrics.counter("short audio reads");
+    private final AtomicLong mReadErrors = mMetrics.counter("audio read errors");
+    private final AtomicLong mDroppedAudio = mMetrics.counter("dropped audio buffers");
+    private final LatencyHistogram mReadLatency = mMetrics.latency("audio read latency");
+    private final LatencyHistogram mInputDequeueLatency =
+            mMetrics.latency("audio encoder input dequeue latency");
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -188,29 +250,13 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
     public void onCreate() {
         super.onCreate();
 
-        // Prepare all the output metadata
-        String videoDate = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.getDefault())
-                .format(new Date());
-        // the directory which holds all recording files
-        mPath = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES),
-                "ScreenRecords/ScreenRecord-" + videoDate + ".mp4");
-
-        File recordingDir = mPath.getParentFile();
-        if (recordingDir == null) {
-            throw new SecurityException("Cannot access scoped Movies/ScreenRecords directory");
-        }
-        //noinspection ResultOfMethodCallIgnored
-        recordingDir.mkdirs();
-        if (!(recordingDir.exists() && recordingDir.canWrite())) {
-            throw new SecurityException("Cannot write to " + recordingDir);
-        }
-
         mMediaProjectionManager = getSystemService(MediaProjectionManager.class);
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_USER_BACKGROUND);
         filter.addAction(Intent.ACTION_SHUTDOWN);
         registerReceiver(mBroadcastReceiver, filter);
+        PostProcessor.getInstance(this).resumePending();
 
         mNotificationManager = getSystemService(NotificationManager.class);
 
@@ -238,7 +284,7 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
     }
 
     @Override
-    public void onContentWritten(@Nullable String uri) {
+    public void onContentWritten(@NonNull Uri item, @Nullable String uri) {
         stopForeground(true);
         if (uri != null) {
             sendShareNotification(uri);
@@ -253,14 +299,10 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
         }
 
         mStartTime = SystemClock.elapsedRealtime();
+        mFirstVideoPtsUs = -1;
+        mMetrics.reset();
         mBuilder = createNotificationBuilder();
-        mTimer = new Timer();
-        mTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                updateNotification();
-            }
-        }, 100, 1000);
+        Ticker.getInstance().schedule(mNotificationUpdater, NOTIFICATION_UPDATE_INTERVAL);
 
         Utils.setStatus(getApplicationContext(), Utils.PREF_RECORDING_SCREEN);
 
@@ -277,8 +319,23 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
     }
 
     private void startRecording() {
+        // Prepare all the output metadata
+        String videoDate = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.getDefault())
+                .format(new Date());
+        mRecordingUri = MediaProviderHelper.createVideoItem(getContentResolver(),
+                "ScreenRecord-" + videoDate + ".mp4");
+        if (mRecordingUri == null) {
+            throw new SecurityException("Cannot create a MediaStore item for the recording");
+        }
+        mRecordingFd = MediaProviderHelper.openForWrite(getContentResolver(), mRecordingUri);
+        if (mRecordingFd == null) {
+            MediaProviderHelper.remove(getContentResolver(), mRecordingUri);
+            mRecordingUri = null;
+            throw new SecurityException("Cannot write to the MediaStore item for the recording");
+        }
+
         try {
-            Log.d(LOGTAG, "Writing video output to: " + mPath.getAbsolutePath());
+            Log.d(LOGTAG, "Writing video output to: " + mRecordingUri);
 
             // Set initial resources
             DisplayMetrics metrics = new DisplayMetrics();
@@ -305,7 +362,11 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
             // Reving up those recorders
             switch (mAudioSource) {
             	case 1:
-            		mVideoBufferInfo = new MediaCodec.BufferInfo();
+                case 3:
+                    mEncoderThread = new HandlerThread("ScreencastEncoder");
+                    mEncoderThread.start();
+                    mEncoderHandler = new Handler(mEncoderThread.getLooper());
+                    mAudioInputBuffers.clear();
                     mAudioBufferBytes =  AudioRecord.getMinBufferSize(
                         AUDIO_SAMPLE_RATE,
                         AudioFormat.CHANNEL_IN_MONO,
@@ -321,6 +382,7 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
             		videoFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
             		videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
                     mVideoEncoder = MediaCodec.createEncoderByType("video/avc");
+                    mVideoEncoder.setCallback(new EncoderCallback(TRACK_VIDEO), mEncoderHandler);
                     mVideoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
                     // Preparing audio encoder
                     MediaFormat mAudioFormat = MediaFormat.createAudioFormat("audio/mp4a-latm", AUDIO_SAMPLE_RATE, TOTAL_NUM_TRACKS);
@@ -328,12 +390,17 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
                     mAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
                     mAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
                     mAudioEncoder = MediaCodec.createEncoderByType("audio/mp4a-latm");
+                    mAudioEncoder.setCallback(new EncoderCallback(TRACK_AUDIO), mEncoderHandler);
                     mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
                     int iMinBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
                     int bufferSize = SAMPLES_PER_FRAME * VIDEO_FRAME_RATE;
                     if (bufferSize < iMinBufferSize)
                         bufferSize = ((iMinBufferSize / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
-            		mMuxer = new MediaMuxer(mPath.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    MediaMuxer muxer = new MediaMuxer(mRecordingFd.getFileDescriptor(),
+                            MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    // The writer closes the file, then it can be published
+                    mMuxerWriter = new MuxerWriter(muxer, MUXER_QUEUE_CAPACITY,
+                            this::onMuxerFinished, "video", "audio");
                     // Preparing internal recorder
             		AudioPlaybackCaptureConfiguration internalAudioConfig = 
             		new AudioPlaybackCaptureConfiguration.Builder(mMediaProjection)
@@ -350,6 +417,19 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
                                 .build())
                         .setAudioPlaybackCaptureConfig(internalAudioConfig)
                         .build();
+                    if (mAudioSource == 3) {
+                        // Preparing the microphone, mixed into the internal audio
+                        mMicrophoneAudio = new AudioRecord(MediaRecorder.AudioSource.MIC,
+                                AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                                AudioFormat.ENCODING_PCM_16BIT, mAudioBufferBytes * 2);
+                        PcmMixer mixer = new PcmMixer(MIX_QUEUE_SAMPLES, MIX_TARGET_SAMPLES,
+                                MIX_TOLERANCE_SAMPLES, SAMPLES_PER_FRAME);
+                        mixer.setGains(MIX_INTERNAL_GAIN_DB, MIX_MICROPHONE_GAIN_DB);
+                        mMixer = mixer;
+                    } else {
+                        mMixer = null;
+                        mMicrophoneCaptureCpuNanos = 0;
+                    }
                     mInputSurface = mVideoEncoder.createInputSurface();
                     break;
 
@@ -367,7 +447,7 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
 		                mMediaRecorder.setAudioEncodingBitRate(AUDIO_BIT_RATE);
 		                mMediaRecorder.setAudioSamplingRate(AUDIO_SAMPLE_RATE);
 	                }
-		            mMediaRecorder.setOutputFile(mPath);
+		            mMediaRecorder.setOutputFile(mRecordingFd.getFileDescriptor());
 		            mMediaRecorder.prepare();
                     mInputSurface = mMediaRecorder.getSurface();
 	                break;
@@ -388,15 +468,24 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
             Utils.setShowTaps(this, Utils.getShowTapsConfig(this));
             switch (mAudioSource) {
                 case 1:
+                case 3:
                     mVideoRecording = true;
-                    // Start the encoders
+                    // Start the encoders, their output comes through EncoderCallback
+                    mMuxerWriter.start();
+                    mEncodersRunning = 2;
                     mVideoEncoder.start();
-                    new Thread(new VideoEncoderTask(), "VideoEncoderTask").start();
                     mAudioEncoder.start();
-                    new Thread(new AudioEncoderTask(), "AudioEncoderTask").start();
                     mInternalAudio.startRecording();
                     mAudioRecording = true;
-                    new Thread(new AudioRecorderTask(), "AudioRecorderTask").start();
+                    if (mMicrophoneAudio != null) {
+                        mMicrophoneAudio.startRecording();
+                        mMicrophoneThread = new Thread(new MicrophoneRecorderTask(
+                                mMicrophoneAudio), "MicrophoneRecorderTask");
+                        mMicrophoneThread.start();
+                    }
+                    mAudioThread = new Thread(new AudioRecorderTask(mInternalAudio,
+                            mAudioEncoder), "AudioRecorderTask");
+                    mAudioThread.start();
                     break;
 
                 default:
@@ -418,18 +507,44 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
     }
 
     private void updateNotification() {
-        long timeElapsed = SystemClock.elapsedRealtime() - mStartTime;
         mBuilder.setContentText(getString(R.string.screen_notification_message,
-                DateUtils.formatElapsedTime(timeElapsed / 1000)));
+                DateUtils.formatElapsedTime(getDurationMillis() / 1000)));
         mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
     }
 
+    /**
+     * The span of the encoded video frames when the encoder is ours, the time since
+     * the recording started when MediaRecorder does the encoding.
+     */
+    @Override
+    public long getDurationMillis() {
+        long firstPtsUs = mFirstVideoPtsUs;
+        if (firstPtsUs >= 0) {
+            return (mLastVideoPtsUs - firstPtsUs) / 1000;
+        }
+        long end = mVideoRecording ? SystemClock.elapsedRealtime() : mStopTime;
+        return Math.max(0, end - mStartTime);
+    }
+
     private void stopRecording() {
+        Ticker.getInstance().cancel(mNotificationUpdater);
+        if (mVideoRecording) {
+            mStopTime = SystemClock.elapsedRealtime();
+        }
         switch (mAudioSource) {
             case 1:
+            case 3:
+                // The audio recorder thread queues the end of its stream itself
                 mAudioRecording = false;
-                mAudioEncoding = false;
-                mVideoEncoding = false;
+                if (mEncoderHandler != null) {
+                    // Both encoders drain, then the encoder thread closes the file
+                    mEncoderHandler.post(() -> {
+                        if (mVideoEncoder != null) {
+                            mVideoEncoder.signalEndOfInputStream();
+                        }
+                    });
+                    mEncoderHandler.postDelayed(mDrainTimeout, ENCODER_DRAIN_TIMEOUT_MS);
+                }
                 break;
 
             default:
@@ -440,15 +555,128 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
                 mMediaProjection = null;
                 mInputSurface.release();
                 mVirtualDisplay.release();
+                publishRecording();
                 break;
         }
         Utils.setShowTaps(this, false);
         mVideoRecording = false;
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer = null;
+    }
+
+    /**
+     * Called on the encoder thread once an encoder has output its end of stream.
+     */
+    private void onEncoderDone() {
+        if (--mEncodersRunning == 0) {
+            finishEncoding();
+        }
+    }
+
+    /**
+     * Release the encoders and close the file, on the encoder thread.
+     */
+    private void finishEncoding() {
+        if (mVideoEncoder == null) {
+            return;
+        }
+        mEncoderHandler.removeCallbacks(mDrainTimeout);
+        mEncoderCpuNanos = Debug.threadCpuTimeNanos();
+
+        // The audio thread fills the input buffers of the encoder, it has to be gone
+        // before the encoder is. It stops on its own, unless both encoders failed.
+        mAudioRecording = false;
+        try {
+            mAudioThread.join();
+            if (mMicrophoneThread != null) {
+                mMicrophoneThread.join();
+                mMicrophoneThread = null;
+            }
+        } catch (InterruptedException e) {
+            Log.e(LOGTAG, "Interrupted while waiting for the audio threads", e);
+        }
+        try {
+            releaseEncoder(mAudioEncoder, "audio");
+            mAudioEncoder = null;
+            releaseEncoder(mVideoEncoder, "video");
+            mVideoEncoder = null;
+
+            if (mVirtualDisplay != null) {
+                mVirtualDisplay.release();
+                mVirtualDisplay = null;
+            }
+            if (mInputSurface != null) {
+                mInputSurface.release();
+                mInputSurface = null;
+            }
+            if (mMediaProjection != null) {
+                mMediaProjection.stop();
+                mMediaProjection = null;
+            }
+        } finally {
+            // Tracks that did not end are cut where they are
+            mMuxerWriter.close();
+            logCpuCost();
+            mEncoderThread.quitSafely();
         }
-        MediaProviderHelper.addVideoToContentProvider(getContentResolver(), mPath, this);
+    }
+
+    /**
+     * An encoder that failed cannot be stopped, it still has to be released.
+     */
+    private static void releaseEncoder(MediaCodec encoder, String name) {
+        try {
+            encoder.stop();
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "Failed to stop the " + name + " encoder", e);
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private void logCpuCost() {
+        double minutes = getDurationMillis() / 60000.0;
+        if (minutes <= 0) {
+            return;
+        }
+        Log.d(LOGTAG, String.format(Locale.US,
+                "CPU per recorded minute: encoder thread %.1f ms, audio capture %.1f ms, "
+                        + "microphone %.1f ms",
+                mEncoderCpuNanos / 1e6 / minutes, mAudioCaptureCpuNanos / 1e6 / minutes,
+                mMicrophoneCaptureCpuNanos / 1e6 / minutes));
+    }
+
+    /**
+     * Called on the muxer writer thread once the file has been closed.
+     */
+    private void onMuxerFinished(boolean written) {
+        if (written) {
+            publishRecording();
+            return;
+        }
+        if (mRecordingUri == null) {
+            return;
+        }
+
+        // Nothing playable made it to the file, do not leave it behind
+        Uri item = mRecordingUri;
+        Log.w(LOGTAG, "Nothing was recorded, removing " + item);
+        Utils.closeQuietly(mRecordingFd);
+        MediaProviderHelper.remove(getContentResolver(), item);
+        mRecordingUri = null;
+        mRecordingFd = null;
+        onContentWritten(item, null);
+    }
+
+    private void publishRecording() {
+        if (mRecordingUri == null) {
+            return;
+        }
+
+        // The content has already been written in place, only make it visible
+        long size = mRecordingFd.getStatSize();
+        Utils.closeQuietly(mRecordingFd);
+        MediaProviderHelper.publish(this, mRecordingUri, getDurationMillis(), size, this);
+        mRecordingUri = null;
+        mRecordingFd = null;
     }
 
     private void stopCasting() {
@@ -460,6 +688,54 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Recording: " + mVideoRecording + ", audio source: " + mAudioSource);
+        pw.println("Duration: " + getDurationMillis() + " ms");
+        if (mAudioSource == 1 || mAudioSource == 3) {
+            pw.println("Pipeline:");
+            mMetrics.dump(pw, "  ");
+            MuxerWriter muxerWriter = mMuxerWriter;
+            if (muxerWriter != null) {
+                muxerWriter.dump(pw, "  ");
+            }
+            SampleClock clock = mAudioClock;
+            if (clock != null) {
+                pw.println("  audio clock: " + describeClock(clock));
+            }
+            PcmMixer mixer = mMixer;
+            if (mixer != null) {
+                pw.println("  microphone mix: " + describeMixer(mixer));
+            }
+            pw.println(String.format(Locale.US,
+                    "  CPU: encoder thread %.1f ms, audio capture %.1f ms, microphone %.1f ms",
+                    mEncoderCpuNanos / 1e6, mAudioCaptureCpuNanos / 1e6,
+                    mMicrophoneCaptureCpuNanos / 1e6));
+        } else {
+            // MediaRecorder does the whole pipeline out of our sight
+            pw.println("Pipeline: MediaRecorder");
+        }
+        pw.println("Post-processing jobs:");
+        for (PostProcessor.JobStats stats : PostProcessor.getInstance(this).getRecentStats()) {
+            pw.println("  " + stats);
+        }
+    }
+
+    private static String describeClock(SampleClock clock) {
+        if (!clock.isAnchored()) {
+            return "no capture timestamps, stamped from the read times";
+        }
+        return String.format(Locale.US, "drift %.1f ms, max %.1f ms, corrected %.1f ms",
+                clock.getDriftNanos() / 1e6, clock.getMaxDriftNanos() / 1e6,
+                clock.getCorrectionNanos() / 1e6);
+    }
+
+    private static String describeMixer(PcmMixer mixer) {
+        return "queued " + mixer.getFill() + ", skipped " + mixer.getSkipped()
+                + ", repeated " + mixer.getRepeated() + ", underruns " + mixer.getUnderruns()
+                + ", dropped " + mixer.getDropped();
+    }
+
     private NotificationCompat.Builder createNotificationBuilder() {
         Intent intent = new Intent(this, RecorderActivity.class);
         Intent stopRecordingIntent = new Intent(ACTION_STOP_SCREENCAST);
@@ -495,7 +771,7 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
                 LastRecordHelper.getDeleteIntent(this, false),
                 PendingIntent.FLAG_CANCEL_CURRENT);
 
-        long timeElapsed = SystemClock.elapsedRealtime() - mStartTime;
+        long timeElapsed = getDurationMillis();
         LastRecordHelper.setLastItem(this, uriStr, timeElapsed, false);
 
         return new NotificationCompat.Builder(this, SCREENCAST_NOTIFICATION_CHANNEL)
@@ -510,226 +786,229 @@ public class ScreencastService extends Service implements MediaProviderHelper.On
                 .setContentIntent(pi);
     }
 
+    /**
+     * Reads the internal audio straight into the input buffers of the audio encoder,
+     * a whole AAC frame per buffer. The microphone is mixed in there when it is
+     * recorded as well.
+     */
     private class AudioRecorderTask implements Runnable {
-        ByteBuffer inputBuffer;
-        int readResult;
+        private final AudioRecord mRecord;
+        private final MediaCodec mEncoder;
+        private final AudioTimestamp mTimestamp = new AudioTimestamp();
+        private final SampleClock mClock = new SampleClock(AUDIO_SAMPLE_RATE,
+                AUDIO_DRIFT_TOLERANCE_NS, AUDIO_MAX_SLEW_NS);
+        // Where the audio goes when the encoder has no buffer for it
+        private ByteBuffer mDiscard;
+
+        AudioRecorderTask(AudioRecord record, MediaCodec encoder) {
+            mRecord = record;
+            mEncoder = encoder;
+        }
 
         @Override
         public void run() {
-            long audioPresentationTimeNs;
-            byte[] mTempBuffer = new byte[SAMPLES_PER_FRAME];
-            while (mAudioRecording) {
-                audioPresentationTimeNs = System.nanoTime();
-                readResult = mInternalAudio.read(mTempBuffer, 0, SAMPLES_PER_FRAME);
-                if(readResult == AudioRecord.ERROR_BAD_VALUE || readResult == AudioRecord.ERROR_INVALID_OPERATION) {
-                    continue;
-                }
-                // send current frame data to encoder
-                try {
-                    synchronized (mAudioEncoderLock) {
-                        if (mAudioEncoding) {
-                            int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(-1);
-                            if (inputBufferIndex >= 0) {
-                                inputBuffer = mAudioEncoder.getInputBuffer(inputBufferIndex);
-                                inputBuffer.clear();
-                                inputBuffer.put(mTempBuffer);
-
-                                mAudioEncoder.queueInputBuffer(inputBufferIndex, 0, mTempBuffer.length, audioPresentationTimeNs / 1000, 0);
-                            }
-                        }
-                    }
-                } catch (Throwable t) {
-                    t.printStackTrace();
-                }
-            }
-            // finished recording -> send it to the encoder
-            audioPresentationTimeNs = System.nanoTime();
-            readResult = mInternalAudio.read(mTempBuffer, 0, SAMPLES_PER_FRAME);
-            if (readResult == AudioRecord.ERROR_BAD_VALUE
-                || readResult == AudioRecord.ERROR_INVALID_OPERATION)
-            // send current frame data to encoder
+            mAudioClock = mClock;
+            PcmMixer mixer = mMixer;
+            boolean endOfStream = false;
             try {
-                synchronized (mAudioEncoderLock) {
-                    if (mAudioEncoding) {
-                        int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(-1);
-                        if (inputBufferIndex >= 0) {
-                            inputBuffer = mAudioEncoder.getInputBuffer(inputBufferIndex);
-                            inputBuffer.clear();
-                            inputBuffer.put(mTempBuffer);
-                            mAudioEncoder.queueInputBuffer(inputBufferIndex, 0, mTempBuffer.length, audioPresentationTimeNs / 1000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                // The last read after stop carries the end of stream to the encoder
+                while (!endOfStream) {
+                    endOfStream = !mAudioRecording;
+                    long start = System.nanoTime();
+                    Integer index = mAudioInputBuffers.poll(AUDIO_INPUT_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                    mInputDequeueLatency.record(System.nanoTime() - start);
+
+                    ByteBuffer buffer = index != null ? mEncoder.getInputBuffer(index) : null;
+                    if (buffer == null) {
+                        // Keep reading, the audio clock must not lose track
+                        mDroppedAudio.incrementAndGet();
+                        if (mDiscard == null) {
+                            mDiscard = ByteBuffer.allocateDirect(AUDIO_INPUT_BYTES);
                         }
+                        buffer = mDiscard;
                     }
-                }
-            } catch (Throwable t) {
-                t.printStackTrace();
-            }
-            mInternalAudio.stop();
-            mInternalAudio.release();
-            mInternalAudio = null;
-        }
-    }
-
-    // Encoders tasks to do both screen capture and audio recording
-    private class VideoEncoderTask implements Runnable {
-        private MediaCodec.BufferInfo videoBufferInfo;
-
-        @Override
-        public void run(){
-            mVideoEncoding = true;
-            videoTrackIndex = -1;
-            videoBufferInfo = new MediaCodec.BufferInfo();
-            while(mVideoEncoding){
-                int bufferIndex = mVideoEncoder.dequeueOutputBuffer(videoBufferInfo, 10);
-                if (bufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // nothing available yet
-                } else if (bufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // should happen before receiving buffers, and should only happen once
-                    if (videoTrackIndex >= 0) {
-                        throw new RuntimeException("format changed twice");
-                    }
-                    synchronized (mMuxerLock) {
-                        videoTrackIndex = mMuxer.addTrack(mVideoEncoder.getOutputFormat());
-
-                        if (!mMuxerStarted && videoTrackIndex >= 0 && audioTrackIndex >= 0) {
-                            mMuxer.start();
-                            mMuxerStarted = true;
+                    int length = read(buffer);
+                    long readEnd = System.nanoTime();
+                    if (length < 0) {
+                        if (!endOfStream) {
+                            // Errors such as a dead audio server do not go away, end
+                            // the track here and let the video go on
+                            Log.w(LOGTAG, "Internal audio stopped delivering audio: "
+                                    + length);
+                            endOfStream = true;
                         }
+                        length = 0;
                     }
-                } else if (bufferIndex < 0) {
-                    // not sure what's going on, ignore it
-                } else {
-                    ByteBuffer videoData = mVideoEncoder.getOutputBuffer(bufferIndex);
-                    if (videoData == null) {
-                        throw new RuntimeException("couldn't fetch buffer at index " + bufferIndex);
-                    }
-                    if ((videoBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        videoBufferInfo.size = 0;
+                    if (mixer != null && length > 0) {
+                        // Also for the discarded audio, the microphone must keep pace
+                        mixer.mix(buffer, length / 2);
                     }
-                    if (videoBufferInfo.size != 0) {
-                        if (mMuxerStarted) {
-                            videoData.position(videoBufferInfo.offset);
-                            videoData.limit(videoBufferInfo.offset + videoBufferInfo.size);
-                            synchronized (mWriteVideoLock) {
-                                if (mMuxerStarted) {
-                                    mMuxer.writeSampleData(videoTrackIndex, videoData, videoBufferInfo);
-                                }
-                            }
-                        } else {
-                            // muxer not started
-                        }
+
+                    // Stamp by the frames read so far, never by when the read returned
+                    if (mRecord.getTimestamp(mTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                            == AudioRecord.SUCCESS) {
+                        mClock.onTimestamp(mTimestamp.framePosition, mTimestamp.nanoTime);
                     }
-                    mVideoEncoder.releaseOutputBuffer(bufferIndex, false);
-                    if ((videoBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        mVideoEncoding = false;
-                        break;
+                    long presentationTimeNs = mClock.next(length / 2, readEnd);
+                    if (buffer != mDiscard) {
+                        mEncoder.queueInputBuffer(index, 0, length, presentationTimeNs / 1000,
+                                endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    } else if (endOfStream) {
+                        queueEndOfStream(presentationTimeNs);
                     }
                 }
+            } catch (InterruptedException e) {
+                Log.e(LOGTAG, "Interrupted while encoding audio", e);
+            } catch (IllegalStateException e) {
+                Log.e(LOGTAG, "The audio encoder stopped taking input", e);
+            } finally {
+                mRecord.stop();
+                mRecord.release();
+                mInternalAudio = null;
+                mAudioCaptureCpuNanos = Debug.threadCpuTimeNanos();
+                Log.d(LOGTAG, "Audio clock: " + describeClock(mClock));
+                if (mixer != null) {
+                    Log.d(LOGTAG, "Microphone mix: " + describeMixer(mixer));
+                }
             }
-            mVideoEncoder.stop();
-            mVideoEncoder.release();
-            mVideoEncoder = null;
+        }
 
-            if (mInputSurface != null) {
-                mInputSurface.release();
-                mInputSurface = null;
-            }
-            if (mMediaProjection != null) {
-                mMediaProjection.stop();
-                mMediaProjection = null;
+        /**
+         * The end of stream still needs a buffer when the last read was discarded.
+         */
+        private void queueEndOfStream(long presentationTimeNs) throws InterruptedException {
+            Integer index = mAudioInputBuffers.poll(AUDIO_INPUT_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS);
+            if (index == null) {
+                Log.w(LOGTAG, "No audio encoder buffer for the end of stream");
+                return;
             }
-            synchronized (mWriteAudioLock) {
-                synchronized (mMuxerLock) {
-                    if (mMuxer != null) {
-                        if (mMuxerStarted) {
-                            mMuxer.stop();
-                        }
-                        mMuxer.release();
-                        mMuxer = null;
-                        mMuxerStarted = false;
+            mEncoder.queueInputBuffer(index, 0, 0, presentationTimeNs / 1000,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+
+        /**
+         * Fill a buffer with an AAC frame, or as much of it as the buffer takes.
+         *
+         * @return the number of bytes read, or the error of the first read
+         */
+        private int read(ByteBuffer buffer) {
+            int size = Math.min(buffer.capacity(), AUDIO_INPUT_BYTES);
+            int length = 0;
+            while (length < size) {
+                // The record writes at the position and leaves it where it was
+                buffer.position(length);
+                long start = System.nanoTime();
+                int read = mRecord.read(buffer, size - length);
+                mReadLatency.record(System.nanoTime() - start);
+                mAudioReads.incrementAndGet();
+                if (read <= 0) {
+                    if (read < 0) {
+                        mReadErrors.incrementAndGet();
                     }
+                    return length > 0 ? length : read;
                 }
+                if (read < size - length) {
+                    mShortReads.incrementAndGet();
+                }
+                length += read;
             }
+            buffer.position(0);
+            return length;
         }
     }
 
-    private class AudioEncoderTask implements Runnable {
-        private MediaCodec.BufferInfo audioBufferInfo;
+    /**
+     * Queues the microphone for the mixer in small blocks, until the recording stops.
+     */
+    private class MicrophoneRecorderTask implements Runnable {
+        private final AudioRecord mRecord;
+        private final short[] mBlock = new short[AUDIO_SAMPLE_RATE / 100];
 
-        @Override
-        public void run(){
-            mAudioEncoding = true;
-            audioTrackIndex = -1;
-            audioBufferInfo = new MediaCodec.BufferInfo();
-            while(mAudioEncoding){
-                int bufferIndex = mAudioEncoder.dequeueOutputBuffer(audioBufferInfo, 10);
-                if (bufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                } else if (bufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // should happen before receiving buffers, and should only happen once
-                    if (audioTrackIndex >= 0) {
-                        throw new RuntimeException("format changed twice");
-                    }
-                    synchronized (mMuxerLock) {
-                        audioTrackIndex = mMuxer.addTrack(mAudioEncoder.getOutputFormat());
+        MicrophoneRecorderTask(AudioRecord record) {
+            mRecord = record;
+        }
 
-                        if (!mMuxerStarted && videoTrackIndex >= 0 && audioTrackIndex >= 0) {
-                            mMuxer.start();
-                            mMuxerStarted = true;
-                        }
-                    }
-                } else if (bufferIndex < 0) {
-                    // let's ignore it
-                } else {
-                    if (mMuxerStarted && audioTrackIndex >= 0) {
-                        ByteBuffer encodedData = mAudioEncoder.getOutputBuffer(bufferIndex);
-                        if (encodedData == null) {
-                            throw new RuntimeException("encoderOutputBuffer " + bufferIndex + " was null");
-                        }
-                        if ((audioBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                            // The codec config data was pulled out and fed to the muxer when we got
-                            // the INFO_OUTPUT_FORMAT_CHANGED status. Ignore it.
-                            audioBufferInfo.size = 0;
-                        }
-                        if (audioBufferInfo.size != 0) {
-                            if (mMuxerStarted) {
-                                // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                                encodedData.position(audioBufferInfo.offset);
-                                encodedData.limit(audioBufferInfo.offset + audioBufferInfo.size);
-                                synchronized (mWriteAudioLock) {
-                                    if (mMuxerStarted) {
-                                        mMuxer.writeSampleData(audioTrackIndex, encodedData, audioBufferInfo);
-                                    }
-                                }
-                            }
-                        }
-                        mAudioEncoder.releaseOutputBuffer(bufferIndex, false);
-                        if ((audioBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            // reached EOS
-                            mAudioEncoding = false;
-                            break;
-                        }
+        @Override
+        public void run() {
+            PcmMixer mixer = mMixer;
+            try {
+                while (mAudioRecording) {
+                    int read = mRecord.read(mBlock, 0, mBlock.length);
+                    if (read < 0) {
+                        // The internal audio goes on without it
+                        mReadErrors.incrementAndGet();
+                        Log.w(LOGTAG, "Microphone stopped delivering audio: " + read);
+                        break;
                     }
+                    mixer.write(mBlock, read);
                 }
+            } finally {
+                mRecord.stop();
+                mRecord.release();
+                mMicrophoneAudio = null;
+                mMicrophoneCaptureCpuNanos = Debug.threadCpuTimeNanos();
             }
+        }
+    }
 
-            synchronized (mAudioEncoderLock) {
-                mAudioEncoder.stop();
-                mAudioEncoder.release();
-                mAudioEncoder = null;
-            }
+    /**
+     * Hands the output of an encoder to the muxer writer as soon as the encoder has
+     * some, nothing polls the encoders.
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+        private final int mTrack;
+        private boolean mDone;
 
-            synchronized (mWriteVideoLock) {
-                synchronized (mMuxerLock) {
-                    if (mMuxer != null) {
-                        if (mMuxerStarted) {
-                            mMuxer.stop();
-                        }
-                        mMuxer.release();
-                        mMuxer = null;
-                        mMuxerStarted = false;
+        EncoderCallback(int track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Only the audio encoder has input buffers, the video one reads a surface
+            mAudioInputBuffers.add(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                            MediaCodec.BufferInfo info) {
+            ByteBuffer data = codec.getOutputBuffer(index);
+            // The codec config data was handed over with the output format
+            if (data != null && info.size != 0
+                    && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mMuxerWriter.write(mTrack, data, info);
+                if (mTrack == TRACK_VIDEO) {
+                    if (mFirstVideoPtsUs < 0) {
+                        mFirstVideoPtsUs = info.presentationTimeUs;
                     }
+                    mLastVideoPtsUs = info.presentationTimeUs;
                 }
             }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                done();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(LOGTAG, (mTrack == TRACK_VIDEO ? "Video" : "Audio") + " encoder failed", e);
+            done();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            mMuxerWriter.setFormat(mTrack, format);
+        }
+
+        private void done() {
+            if (!mDone) {
+                mDone = true;
+                mMuxerWriter.end(mTrack);
+                onEncoderDone();
+            }
         }
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.sounds;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.lineageos.recorder.audio.AudioSink;
+import org.lineageos.recorder.utils.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes PCM blocks to AAC with an asynchronous MediaCodec and muxes them into
+ * an MPEG-4 audio file while recording.
+ */
+class AacSink implements AudioSink {
+    static final String MIME_TYPE = "audio/mp4";
+    static final String EXTENSION = ".m4a";
+
+    private static final String TAG = "AacSink";
+    private static final int BIT_RATE_PER_CHANNEL = 64000;
+    private static final long TIMEOUT_MS = 2000;
+
+    private final ParcelFileDescriptor mFd;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final MediaCodec mEncoder;
+    private final MediaMuxer mMuxer;
+    private final HandlerThread mCodecThread;
+    private final ArrayBlockingQueue<Integer> mInputBuffers = new ArrayBlockingQueue<>(64);
+    private final CountDownLatch mEndOfStream = new CountDownLatch(1);
+
+    private long mQueuedFrames;
+    private int mTrackIndex = -1;
+    private volatile boolean mSampleWritten;
+    private long mLength;
+    private volatile MediaCodec.CodecException mError;
+
+    AacSink(ParcelFileDescriptor fd, int sampleRate, int channels) throws IOException {
+        mFd = fd;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE_PER_CHANNEL * channels);
+
+        mMuxer = new MediaMuxer(fd.getFileDescriptor(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mCodecThread = new HandlerThread(TAG);
+        MediaCodec encoder = null;
+        try {
+            encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            mCodecThread.start();
+            encoder.setCallback(new EncoderCallback(), new Handler(mCodecThread.getLooper()));
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+        } catch (IOException | RuntimeException e) {
+            if (encoder != null) {
+                encoder.release();
+            }
+            mCodecThread.quitSafely();
+            mMuxer.release();
+            throw e;
+        }
+        mEncoder = encoder;
+    }
+
+    @Override
+    public void write(short[] samples, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int index = takeInputBuffer();
+            ByteBuffer input = mEncoder.getInputBuffer(index);
+            if (input == null) {
+                throw new IOException("No input buffer at index " + index);
+            }
+            input.clear();
+            input.order(ByteOrder.nativeOrder());
+
+            int count = Math.min(length - offset, input.remaining() / 2);
+            count -= count % mChannels;
+            for (int i = 0; i < count; i++) {
+                input.putShort(samples[offset + i]);
+            }
+            mEncoder.queueInputBuffer(index, 0, count * 2, getPresentationTimeUs(), 0);
+            mQueuedFrames += count / mChannels;
+            offset += count;
+        }
+    }
+
+    /**
+     * An MPEG-4 file is unplayable until the muxer writes its index when it is stopped,
+     * there is nothing worth flushing before that.
+     */
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            int index = takeInputBuffer();
+            mEncoder.queueInputBuffer(index, 0, 0, getPresentationTimeUs(),
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            if (!mEndOfStream.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for the end of stream");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to stop the encoder", e);
+            }
+            mEncoder.release();
+            // The callbacks use the muxer, they have to be over before it goes away
+            mCodecThread.quitSafely();
+            try {
+                mCodecThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while waiting for the encoder thread", e);
+            }
+            releaseMuxer();
+            mLength = mFd.getStatSize();
+            Utils.closeQuietly(mFd);
+        }
+    }
+
+    private void releaseMuxer() {
+        try {
+            // Stopping a muxer without samples fails, and releasing a started muxer
+            // stops it
+            if (mSampleWritten) {
+                mMuxer.stop();
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to finalize the file", e);
+        }
+        try {
+            mMuxer.release();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to release the muxer", e);
+        }
+    }
+
+    private long getPresentationTimeUs() {
+        return mQueuedFrames * 1000000L / mSampleRate;
+    }
+
+    private int takeInputBuffer() throws IOException {
+        try {
+            Integer index = mInputBuffers.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (mError != null) {
+                throw new IOException(mError);
+            }
+            if (index == null) {
+                throw new IOException("Timed out waiting for an encoder input buffer");
+            }
+            return index;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            mInputBuffers.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // Already handed to the muxer through the output format
+                info.size = 0;
+            }
+            if (info.size != 0 && mTrackIndex >= 0) {
+                ByteBuffer output = codec.getOutputBuffer(index);
+                if (output != null) {
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    mMuxer.writeSampleData(mTrackIndex, output, info);
+                    mSampleWritten = true;
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEndOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                                          @NonNull MediaFormat format) {
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            mError = e;
+            mEndOfStream.countDown();
+        }
+    }
+}
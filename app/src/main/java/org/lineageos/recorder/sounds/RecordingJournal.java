@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.sounds;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Records which pending item is being recorded into and how much of it is known to
+ * be on storage, so a recording interrupted by a crash can be repaired later.
+ * <p>
+ * Every update is committed synchronously: an entry that is still in memory when
+ * the process dies is of no use.
+ */
+class RecordingJournal {
+    private static final String PREFS = "sound_recording_journal";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_FINISHED = "finished";
+
+    private final SharedPreferences mPrefs;
+
+    RecordingJournal(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, 0);
+    }
+
+    void begin(Uri uri, SoundFormat format) {
+        mPrefs.edit()
+                .putString(KEY_URI, uri.toString())
+                .putInt(KEY_FORMAT, format.ordinal())
+                .putLong(KEY_LENGTH, 0)
+                .putLong(KEY_DURATION, 0)
+                .putBoolean(KEY_FINISHED, false)
+                .commit();
+    }
+
+    /**
+     * @param length   size of the file that has been synced to storage
+     * @param duration recorded time in milliseconds at that point
+     */
+    void checkpoint(long length, long duration) {
+        mPrefs.edit()
+                .putLong(KEY_LENGTH, length)
+                .putLong(KEY_DURATION, duration)
+                .commit();
+    }
+
+    /**
+     * The file is complete, only publishing it is left.
+     */
+    void finish(long length, long duration) {
+        mPrefs.edit()
+                .putLong(KEY_LENGTH, length)
+                .putLong(KEY_DURATION, duration)
+                .putBoolean(KEY_FINISHED, true)
+                .commit();
+    }
+
+    void clear() {
+        mPrefs.edit().clear().commit();
+    }
+
+    @Nullable
+    Uri getUri() {
+        String uri = mPrefs.getString(KEY_URI, null);
+        return uri == null ? null : Uri.parse(uri);
+    }
+
+    SoundFormat getFormat() {
+        return SoundFormat.fromIndex(mPrefs.getInt(KEY_FORMAT, 0));
+    }
+
+    long getLength() {
+        return mPrefs.getLong(KEY_LENGTH, 0);
+    }
+
+    long getDuration() {
+        return mPrefs.getLong(KEY_DURATION, 0);
+    }
+
+    boolean isFinished() {
+        return mPrefs.getBoolean(KEY_FINISHED, false);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.sounds;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+
+/**
+ * Capture settings of the sound recorder, in the order of the settings entries.
+ * <p>
+ * Profiles that follow the device rate capture at the rate the audio HAL runs at,
+ * so the framework does not have to resample, and read in whole HAL periods.
+ */
+public enum RecordingProfile {
+    MUSIC(0, 1),
+    SPEECH(16000, 1),
+    STEREO(0, 2);
+
+    private static final int FALLBACK_SAMPLE_RATE = 48000;
+    private static final int FALLBACK_FRAMES_PER_BUFFER = 256;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    // 0 to follow the device
+    private final int mSampleRate;
+    private final int mChannels;
+
+    RecordingProfile(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+    }
+
+    /**
+     * Pick the capture format of this profile for the current device.
+     */
+    CaptureConfig negotiate(Context context) {
+        AudioManager am = context.getSystemService(AudioManager.class);
+        int nativeRate = getIntProperty(am, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE,
+                FALLBACK_SAMPLE_RATE);
+        int nativePeriod = getIntProperty(am, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER,
+                FALLBACK_FRAMES_PER_BUFFER);
+
+        int sampleRate = mSampleRate == 0 ? nativeRate : mSampleRate;
+        int channelMask = mChannels == 2
+                ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int frameSize = mChannels * BYTES_PER_SAMPLE;
+
+        // The same period length expressed at the capture rate
+        int period = Math.max(1, (int) ((long) nativePeriod * sampleRate / nativeRate));
+        int minFrames = Math.max(1, AudioRecord.getMinBufferSize(sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT) / frameSize);
+        int blockFrames = (minFrames + period - 1) / period * period;
+
+        return new CaptureConfig(sampleRate, mChannels, channelMask, blockFrames,
+                // Room for a second block while the first one is being read
+                2 * blockFrames * frameSize);
+    }
+
+    public static RecordingProfile fromIndex(int index) {
+        RecordingProfile[] profiles = values();
+        return index >= 0 && index < profiles.length ? profiles[index] : MUSIC;
+    }
+
+    private static int getIntProperty(AudioManager am, String key, int fallback) {
+        String value = am == null ? null : am.getProperty(key);
+        if (value != null) {
+            try {
+                int parsed = Integer.parseInt(value);
+                if (parsed > 0) {
+                    return parsed;
+                }
+            } catch (NumberFormatException e) {
+                // Use the fallback
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Negotiated capture format, 16 bit PCM read in blocks of whole HAL periods.
+     */
+    static final class CaptureConfig {
+        private final int mSampleRate;
+        private final int mChannels;
+        private final int mChannelMask;
+        private final int mBlockFrames;
+        private final int mBufferSize;
+
+        CaptureConfig(int sampleRate, int channels, int channelMask, int blockFrames,
+                      int bufferSize) {
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mChannelMask = channelMask;
+            mBlockFrames = blockFrames;
+            mBufferSize = bufferSize;
+        }
+
+        int getSampleRate() {
+            return mSampleRate;
+        }
+
+        int getChannels() {
+            return mChannels;
+        }
+
+        int getChannelMask() {
+            return mChannelMask;
+        }
+
+        /**
+         * @return the number of samples, all channels included, read at once
+         */
+        int getBlockSize() {
+            return mBlockFrames * mChannels;
+        }
+
+        /**
+         * @return the size of the {@link AudioRecord} buffer in bytes
+         */
+        int getBufferSize() {
+            return mBufferSize;
+        }
+
+        @Override
+        public String toString() {
+            return mSampleRate + " Hz, " + mChannels + " channel(s), "
+                    + mBlockFrames + " frames per block";
+        }
+    }
+}
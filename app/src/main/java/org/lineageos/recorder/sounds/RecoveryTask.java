@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.sounds;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.lineageos.recorder.audio.WavWriter;
+import org.lineageos.recorder.utils.LastRecordHelper;
+import org.lineageos.recorder.utils.MediaProviderHelper;
+import org.lineageos.recorder.utils.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finishes recordings the process did not live to finish: the pending item named
+ * by the {@link RecordingJournal} is repaired and published, or removed when its
+ * format cannot be repaired. Raw captures left behind by older versions of the
+ * recorder are imported as WAV files.
+ */
+class RecoveryTask extends AsyncTask<Void, Void, Uri> {
+    private static final String TAG = "RecoveryTask";
+
+    // Format of the raw captures of older versions
+    private static final String LEGACY_DIR = "SoundRecords";
+    private static final String LEGACY_EXTENSION = ".pcm";
+    private static final int LEGACY_SAMPLE_RATE = 44100;
+    private static final int LEGACY_CHANNELS = 1;
+    private static final int LEGACY_BITS_PER_SAMPLE = 16;
+
+    private final Context mContext;
+    private final RecordingJournal mJournal;
+    // Read up front, a new recording may start while the task runs
+    private final Uri mJournalUri;
+    private final SoundFormat mJournalFormat;
+    private final long mJournalLength;
+    private final long mJournalDuration;
+    private final boolean mJournalFinished;
+    private long mDuration;
+
+    RecoveryTask(Context context, RecordingJournal journal) {
+        mContext = context.getApplicationContext();
+        mJournal = journal;
+        mJournalUri = journal.getUri();
+        mJournalFormat = journal.getFormat();
+        mJournalLength = journal.getLength();
+        mJournalDuration = journal.getDuration();
+        mJournalFinished = journal.isFinished();
+    }
+
+    @Override
+    protected Uri doInBackground(Void... voids) {
+        ContentResolver cr = mContext.getContentResolver();
+        Uri legacy = importLegacyRecordings(cr);
+        Uri recovered = recoverJournal(cr);
+        return recovered != null ? recovered : legacy;
+    }
+
+    @Override
+    protected void onPostExecute(Uri uri) {
+        if (uri != null) {
+            LastRecordHelper.setLastItem(mContext, uri.toString(), mDuration, true);
+        }
+    }
+
+    @Nullable
+    private Uri recoverJournal(ContentResolver cr) {
+        Uri uri = mJournalUri;
+        if (uri == null) {
+            return null;
+        }
+
+        long length = mJournalFinished ? mJournalLength : -1;
+        if (length < 0) {
+            ParcelFileDescriptor fd = MediaProviderHelper.openForWrite(cr, uri);
+            if (fd != null) {
+                // Not owned by the streams, closing the descriptor is enough
+                FileChannel in = new FileInputStream(fd.getFileDescriptor()).getChannel();
+                FileChannel out = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+                try {
+                    length = mJournalFormat.recover(in, out, mJournalLength);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to repair " + uri, e);
+                } finally {
+                    Utils.closeQuietly(fd);
+                }
+            }
+        }
+
+        Uri result = null;
+        if (length < 0) {
+            Log.w(TAG, "Discarding unrecoverable recording " + uri);
+            MediaProviderHelper.remove(cr, uri);
+        } else if (MediaProviderHelper.publishNow(cr, uri, mJournalDuration, length)) {
+            Log.i(TAG, "Recovered " + uri + ", " + length + " bytes");
+            mDuration = mJournalDuration;
+            result = uri;
+        }
+        if (uri.equals(mJournal.getUri())) {
+            mJournal.clear();
+        }
+        return result;
+    }
+
+    @Nullable
+    private Uri importLegacyRecordings(ContentResolver cr) {
+        File dir = new File(mContext.getExternalFilesDir(Environment.DIRECTORY_MUSIC),
+                LEGACY_DIR);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LEGACY_EXTENSION));
+        if (files == null) {
+            return null;
+        }
+
+        Uri last = null;
+        for (File file : files) {
+            Uri uri = importLegacyRecording(cr, file);
+            if (uri != null) {
+                last = uri;
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            }
+        }
+        return last;
+    }
+
+    @Nullable
+    private Uri importLegacyRecording(ContentResolver cr, File file) {
+        String name = file.getName().replace(LEGACY_EXTENSION, WavWriter.EXTENSION);
+        Uri uri = MediaProviderHelper.createSoundItem(cr, name, WavWriter.MIME_TYPE);
+        if (uri == null) {
+            return null;
+        }
+        ParcelFileDescriptor fd = MediaProviderHelper.openForWrite(cr, uri);
+        if (fd == null) {
+            MediaProviderHelper.remove(cr, uri);
+            return null;
+        }
+
+        long length;
+        long duration;
+        try (FileChannel in = new FileInputStream(file).getChannel();
+             WavWriter out = new WavWriter(new ParcelFileDescriptor.AutoCloseOutputStream(fd)
+                     .getChannel(), LEGACY_SAMPLE_RATE, LEGACY_CHANNELS,
+                     LEGACY_BITS_PER_SAMPLE)) {
+            // The raw capture already is little endian PCM
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (in.read(buffer) > 0) {
+                buffer.flip();
+                out.write(buffer);
+                buffer.clear();
+            }
+            length = out.getLength();
+            duration = out.getDataLength() * 8000 / LEGACY_BITS_PER_SAMPLE
+                    / LEGACY_CHANNELS / LEGACY_SAMPLE_RATE;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to import " + file, e);
+            MediaProviderHelper.remove(cr, uri);
+            return null;
+        }
+
+        if (!MediaProviderHelper.publishNow(cr, uri, duration, length)) {
+            return null;
+        }
+        Log.i(TAG, "Imported " + file);
+        mDuration = duration;
+        return uri;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.sounds;
+
+import android.os.ParcelFileDescriptor;
+
+import org.lineageos.recorder.audio.AudioSink;
+import org.lineageos.recorder.audio.FlacEncoder;
+import org.lineageos.recorder.audio.WavWriter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output formats of the sound recorder, in the order of the settings entries.
+ */
+public enum SoundFormat {
+    WAV(WavWriter.MIME_TYPE, WavWriter.EXTENSION),
+    AAC(AacSink.MIME_TYPE, AacSink.EXTENSION),
+    FLAC(FlacEncoder.MIME_TYPE, FlacEncoder.EXTENSION);
+
+    private final String mMimeType;
+    private final String mExtension;
+
+    SoundFormat(String mimeType, String extension) {
+        mMimeType = mimeType;
+        mExtension = extension;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public String getExtension() {
+        return mExtension;
+    }
+
+    /**
+     * Create a sink writing into the given descriptor. The sink takes ownership of
+     * the descriptor and closes it when it is closed.
+     */
+    AudioSink createSink(ParcelFileDescriptor fd, int sampleRate, int channels)
+            throws IOException {
+        switch (this) {
+            case AAC:
+                return new AacSink(fd, sampleRate, channels);
+            case FLAC:
+                return new FlacEncoder(new ParcelFileDescriptor.AutoCloseOutputStream(fd)
+                        .getChannel(), sampleRate, channels);
+            case WAV:
+            default:
+                return new WavWriter(new ParcelFileDescriptor.AutoCloseOutputStream(fd)
+                        .getChannel(), sampleRate, channels, 16);
+        }
+    }
+
+    /**
+     * Repair a file whose sink was never closed.
+     *
+     * @param length size of the file at the last {@link AudioSink#sync()}
+     * @return the length of the repaired file, or -1 if it cannot be recovered
+     */
+    long recover(FileChannel in, FileChannel out, long length) throws IOException {
+        switch (this) {
+            case WAV:
+                return WavWriter.recover(in, out);
+            case FLAC:
+                return FlacEncoder.recover(in, out, length);
+            case AAC:
+            default:
+                // Nothing is playable without the index written at the end
+                return -1;
+        }
+    }
+
+    public static SoundFormat fromIndex(int index) {
+        SoundFormat[] formats = values();
+        return index >= 0 && index < formats.length ? formats[index] : WAV;
+    }
+}
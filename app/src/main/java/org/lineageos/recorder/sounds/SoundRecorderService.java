@@ -15,6 +15,7 @@
  */
 package org.lineageos.recorder.sounds;
 
+import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -24,64 +25,153 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.net.Uri;
-import android.os.Environment;
+import android.os.Debug;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 
 import org.lineageos.recorder.R;
 import org.lineageos.recorder.RecorderActivity;
+import org.lineageos.recorder.audio.AudioSink;
+import org.lineageos.recorder.audio.AutomaticGainControl;
+import org.lineageos.recorder.audio.Biquad;
+import org.lineageos.recorder.audio.DcBlocker;
+import org.lineageos.recorder.audio.LevelMeter;
+import org.lineageos.recorder.audio.LookaheadLimiter;
+import org.lineageos.recorder.audio.NoiseGate;
+import org.lineageos.recorder.audio.PcmBufferPool;
+import org.lineageos.recorder.audio.PcmRingBus;
+import org.lineageos.recorder.audio.PeakIndex;
+import org.lineageos.recorder.audio.PreRollBuffer;
+import org.lineageos.recorder.audio.ProcessingChain;
+import org.lineageos.recorder.audio.SpectrumAnalyzer;
+import org.lineageos.recorder.audio.VoiceActivityGate;
+import org.lineageos.recorder.jobs.PostProcessor;
 import org.lineageos.recorder.utils.LastRecordHelper;
+import org.lineageos.recorder.utils.LatencyHistogram;
 import org.lineageos.recorder.utils.MediaProviderHelper;
+import org.lineageos.recorder.utils.PipelineMetrics;
+import org.lineageos.recorder.utils.RecordingClock;
+import org.lineageos.recorder.utils.Ticker;
 import org.lineageos.recorder.utils.Utils;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class SoundRecorderService extends Service implements MediaProviderHelper.OnContentWritten {
+public class SoundRecorderService extends Service implements MediaProviderHelper.OnContentWritten,
+        RecordingClock {
 
-    static final String EXTENSION = ".pcm";
     private static final String ACTION_STARTED = "org.lineageos.recorder.sounds.STARTED_SOUND";
     private static final String ACTION_STOPPED = "org.lineageos.recorder.sounds.STOPPED_SOUND";
+    private static final String ACTION_CANCEL_JOB = "org.lineageos.recorder.sounds.CANCEL_JOB";
     private static final String EXTRA_FILE = "extra_filename";
+    private static final String EXTRA_JOB_ID = "extra_job_id";
 
     private static final String SOUNDRECORDER_NOTIFICATION_CHANNEL =
             "soundrecorder_notification_channel";
 
     private static final String TAG = "SoundRecorderService";
-    private static final int SAMPLING_RATE = 44100;
-    private static final int CHANNEL_IN = AudioFormat.CHANNEL_IN_DEFAULT;
     private static final int FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int BUFFER_SIZE = AudioRecord.getMinBufferSize(SAMPLING_RATE,
-            CHANNEL_IN, FORMAT);
+    // Enough blocks to ride out two seconds of storage stalls
+    private static final int BUS_SECONDS = 2;
+    // Pre-roll reads large blocks into a large buffer, fewer wakeups while idle
+    private static final int PRE_ROLL_READ_MS = 100;
+    private static final int PRE_ROLL_BUFFER_MS = 500;
+    private static final long NOTIFICATION_UPDATE_INTERVAL = 1000L;
+    private static final double SILENCE_THRESHOLD_DB = -45.0;
+    private static final int SILENCE_HANGOVER_MS = 1000;
+    private static final int SILENCE_PRE_ROLL_MS = 300;
+    private static final String GAP_MAP_DIR = "gaps";
+    private static final String PEAK_INDEX_DIR = "peaks";
+    // 4096 points resolve mains hum even at 48 kHz, about 47 spectra per second
+    private static final int SPECTRUM_FFT_SIZE = 4096;
+    private static final int SPECTRUM_HOP_FRAMES = 1024;
+    // Clean up: offsets, rumble under the lowest voices, then catch the peaks
+    private static final double DC_CUTOFF_HZ = 5.0;
+    private static final double HIGH_PASS_CUTOFF_HZ = 80.0;
+    private static final double HIGH_PASS_Q = Math.sqrt(0.5);
+    private static final double LIMITER_CEILING_DB = -1.0;
+    private static final int LIMITER_LOOKAHEAD_MS = 5;
+    private static final int LIMITER_RELEASE_MS = 50;
+    // Voice leveling: mute the room between sentences, bring quiet speakers up
+    private static final double GATE_THRESHOLD_DB = -50.0;
+    private static final double GATE_RANGE_DB = 20.0;
+    private static final int GATE_ATTACK_MS = 2;
+    private static final int GATE_HOLD_MS = 200;
+    private static final int GATE_RELEASE_MS = 150;
+    private static final double AGC_TARGET_DB = -18.0;
+    private static final double AGC_MAX_GAIN_DB = 20.0;
+    private static final double AGC_NOISE_FLOOR_DB = -55.0;
+    private static final int AGC_ATTACK_MS = 50;
+    private static final int AGC_RELEASE_MS = 2000;
+    // A crash loses at most this much of a recording
+    private static final int SYNC_INTERVAL_MS = 10000;
     public static final int NOTIFICATION_ID = 60;
     private final IBinder mBinder = new RecorderBinder(this);
-    private int mElapsedTime;
-    private TimerTask mTask;
-    private OnTimerUpdatedListener mTimerListener;
-    private OnAudioLevelUpdatedListener mAudioListener;
-    private String mFilePath;
+    private SoundFormat mFormat = SoundFormat.WAV;
+    private RecordingProfile.CaptureConfig mConfig;
+    private Uri mRecordingUri;
+    private ParcelFileDescriptor mRecordingFd;
+    private long mRecordingSize;
+    private boolean mSkipSilence;
+    // Frames read from the microphone, and frames that made it to the file
+    private volatile long mCapturedFrames;
+    private volatile long mRecordedFrames;
+    private volatile int mSampleRate;
     private String mOutFilePath;
+    private RecordingJournal mJournal;
     private AudioRecord mRecord;
+    private PcmRingBus mBus;
+    // Only set when the captured bytes go to the file untouched
+    private PcmBufferPool mBufferPool;
+    private ProcessingChain mProcessing;
     private Thread mRecordThread;
-    private Thread mVisualizerThread;
-    private byte[] mData;
-    private RecorderStatus mStatus = RecorderStatus.STOPPED;
+    private Thread mWriterThread;
+    private Thread mSpectrumThread;
+    private volatile long mCaptureCpuNanos;
+    private volatile long mWriterCpuNanos;
+    private SpectrumAnalyzer mSpectrumAnalyzer;
+    // Capture kept running while nothing is recording, see setPreRollEnabled()
+    private boolean mPreRollWanted;
+    private RecordingProfile.CaptureConfig mPreRollConfig;
+    private AudioRecord mPreRollRecord;
+    private PreRollBuffer mPreRoll;
+    private Thread mPreRollThread;
+    private volatile boolean mPreRolling;
+    private final LevelMeter mLevelMeter = new LevelMeter();
+    // Pipeline health for dumpsys, started over for every recording
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private final AtomicLong mReads = mMetrics.counter("reads");
+    private final AtomicLong mShortReads = mMetrics.counter("short reads");
+    private final AtomicLong mOverruns = mMetrics.counter("overruns (estimated)");
+    private final AtomicLong mBytesWritten = mMetrics.counter("PCM bytes written");
+    private final LatencyHistogram mReadLatency = mMetrics.latency("read latency");
+    private final LatencyHistogram mWriteLatency = mMetrics.latency("write latency");
+    private final LatencyHistogram mSyncLatency = mMetrics.latency("sync latency");
+    private final Runnable mNotificationUpdater = () -> mNotificationManager.notify(
+            NOTIFICATION_ID, createRecordingNotification());
+    private volatile RecorderStatus mStatus = RecorderStatus.STOPPED;
     private NotificationManager mNotificationManager;
     private final BroadcastReceiver mShutdownReceiver = new BroadcastReceiver() {
         @Override
@@ -102,7 +192,12 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
                 startRecording();
             } else if (ACTION_STOPPED.equals(intent.getAction())) {
                 stopRecording();
+            } else if (ACTION_CANCEL_JOB.equals(intent.getAction())) {
+                PostProcessor.getInstance(this).cancel(intent.getLongExtra(EXTRA_JOB_ID, -1));
             }
+        } else if (!isRecording()) {
+            // Restarted after the process died, onCreate() took care of the leftovers
+            stopSelf(startId);
         }
 
         return START_STICKY;
@@ -114,6 +209,11 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
 
         registerReceiver(mShutdownReceiver, new IntentFilter(Intent.ACTION_SHUTDOWN));
 
+        // Nothing can be recording in a new service, anything in the journal is stale
+        mJournal = new RecordingJournal(this);
+        new RecoveryTask(this, mJournal).execute();
+        PostProcessor.getInstance(this).resumePending();
+
         mNotificationManager = getSystemService(NotificationManager.class);
 
         if (mNotificationManager == null || mNotificationManager.getNotificationChannel(
@@ -132,19 +232,40 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
 
     @Override
     public void onDestroy() {
+        disarmPreRoll();
         unregisterReceiver(mShutdownReceiver);
         super.onDestroy();
     }
 
     @Override
-    public void onContentWritten(@Nullable String uri) {
+    public void onContentWritten(@NonNull Uri item, @Nullable String uri) {
+        // Publishing is asynchronous, the journal may be about a newer recording
+        if (item.equals(mJournal.getUri())) {
+            mJournal.clear();
+        }
+        if (mRecord != null) {
+            // A new recording started meanwhile, its state and notification stay
+            return;
+        }
         mStatus = RecorderStatus.STOPPED;
         mOutFilePath = uri;
         Intent intent = new Intent(ACTION_STOPPED);
         intent.putExtra(EXTRA_FILE, mOutFilePath);
         sendBroadcast(intent);
-        createShareNotification();
         stopForeground(true);
+        // Failed or cancelled, there is nothing to share
+        if (uri != null) {
+            createShareNotification();
+        }
+    }
+
+    @Override
+    public void onPublishProgress(long jobId, int percent) {
+        if (mRecord != null) {
+            // The notification is the one of a newer recording
+            return;
+        }
+        mNotificationManager.notify(NOTIFICATION_ID, createSavingNotification(jobId, percent));
     }
 
     public boolean isRecording() {
@@ -153,31 +274,73 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
 
     public void startRecording() {
         Log.d(TAG, "Sound recorder service started recording\u2026");
-        mElapsedTime = 0;
 
         if (mRecord != null) {
             return;
         }
 
-        File file = createNewAudioFile();
-        if (file == null) {
+        String fileName = createFileName();
+        mFormat = SoundFormat.fromIndex(Utils.getSoundRecordingFormat(this));
+        mRecordingUri = MediaProviderHelper.createSoundItem(getContentResolver(),
+                fileName + mFormat.getExtension(), mFormat.getMimeType());
+        if (mRecordingUri == null) {
             return;
         }
 
-        mFilePath = file.getAbsolutePath();
-        String fileName = file.getName().replace(EXTENSION, "");
-
-        mRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
-                SAMPLING_RATE, CHANNEL_IN, FORMAT, BUFFER_SIZE);
+        mRecordingFd = MediaProviderHelper.openForWrite(getContentResolver(), mRecordingUri);
+        if (mRecordingFd == null) {
+            MediaProviderHelper.remove(getContentResolver(), mRecordingUri);
+            mRecordingUri = null;
+            return;
+        }
+        mRecordingSize = 0;
+        mJournal.begin(mRecordingUri, mFormat);
+        mSkipSilence = Utils.getSoundSkipSilence(this);
+        mCapturedFrames = 0;
+        mRecordedFrames = 0;
+        mMetrics.reset();
+
+        mConfig = RecordingProfile.fromIndex(Utils.getSoundRecordingProfile(this))
+                .negotiate(this);
+        Log.d(TAG, "Capturing " + mConfig);
+        mSampleRate = mConfig.getSampleRate();
+        PreRollBuffer preRoll = takePreRoll(mConfig);
+        if (preRoll == null) {
+            mRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
+                    mConfig.getSampleRate(), mConfig.getChannelMask(), FORMAT,
+                    mConfig.getBufferSize());
+        }
 
-        mData = new byte[BUFFER_SIZE];
-        mRecord.startRecording();
+        int blockSize = mConfig.getBlockSize();
+        mProcessing = createProcessingChain(mConfig.getSampleRate(), mConfig.getChannels(),
+                blockSize);
+        int busSamples = BUS_SECONDS * mConfig.getSampleRate() * mConfig.getChannels();
+        // The pre-roll is handed over at once, make room for it on top
+        int preRollSamples = preRoll != null ? preRoll.getFrames() * mConfig.getChannels() : 0;
+        // Plain WAV stores the captured bytes as they are, keep them off the heap
+        if (mFormat == SoundFormat.WAV && mProcessing.isEmpty() && !mSkipSilence) {
+            mBufferPool = new PcmBufferPool((busSamples + preRollSamples + blockSize - 1)
+                    / blockSize, blockSize * 2);
+            mBus = new PcmRingBus(busSamples / blockSize, blockSize);
+        } else {
+            mBufferPool = null;
+            mBus = new PcmRingBus((busSamples + preRollSamples) / blockSize, blockSize);
+        }
+        if (preRoll == null) {
+            mRecord.startRecording();
+        }
         mStatus = RecorderStatus.RECORDING;
 
-        startRecordingThread();
-        startVisualizerThread();
+        mSpectrumAnalyzer = new SpectrumAnalyzer(mConfig.getSampleRate(),
+                mConfig.getChannels(), SPECTRUM_FFT_SIZE, SPECTRUM_HOP_FRAMES);
 
-        startTimer();
+        // Consumers attach before the first block is published
+        startWriterThread();
+        startSpectrumThread();
+        mLevelMeter.reset();
+        startRecordingThread(preRoll);
+        // The first tick replaces the notification posted below
+        Ticker.getInstance().schedule(mNotificationUpdater, NOTIFICATION_UPDATE_INTERVAL);
 
         Intent intent = new Intent(ACTION_STARTED);
         intent.putExtra(EXTRA_FILE, fileName);
@@ -186,117 +349,566 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
 
     public void stopRecording() {
         Log.d(TAG, "Sound recorder service stopped recording");
-        if (mTask != null) {
-            mTask.cancel();
-            mTask = null;
-        }
+        Ticker.getInstance().cancel(mNotificationUpdater);
 
         if (mRecord != null) {
             mStatus = RecorderStatus.STOPPED;
             mRecord.stop();
+            // The writer drains the bus and finalizes the file once capture ends
+            try {
+                mRecordThread.join();
+                mWriterThread.join();
+                mSpectrumThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while finishing the recording", e);
+            }
             mRecord.release();
             mRecord = null;
+            if (!mProcessing.isEmpty()) {
+                Log.d(TAG, "Processing cost: " + mProcessing);
+            }
+            logCpuCost();
+            mBus = null;
+            mBufferPool = null;
             mRecordThread = null;
-            mVisualizerThread = null;
+            mWriterThread = null;
+            mSpectrumThread = null;
         }
-
-        File tmpFile = new File(mFilePath);
-        if (!tmpFile.exists()) {
-            mFilePath = null;
-            return;
+        if (mPreRollWanted) {
+            armPreRoll();
         }
 
-        mOutFilePath = mFilePath.replace(EXTENSION, PcmConverter.WAV_EXTENSION);
-        PcmConverter.convertToWave(mOutFilePath, BUFFER_SIZE);
-        File oldFile = new File(mFilePath);
-        if (oldFile.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            oldFile.delete();
+        if (mRecordingUri == null) {
+            return;
         }
 
-        MediaProviderHelper.addSoundToContentProvider(
-                getContentResolver(), new File(mOutFilePath), this);
+        // The content has already been written in place, only make it visible
+        long jobId = MediaProviderHelper.publish(this, mRecordingUri, getDurationMillis(),
+                mRecordingSize, this);
+        mNotificationManager.notify(NOTIFICATION_ID, createSavingNotification(jobId, -1));
+        mRecordingUri = null;
+        mRecordingFd = null;
     }
 
-    private File createNewAudioFile() {
+    private String createFileName() {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss",
                 Locale.getDefault());
-        File file = new File(getExternalFilesDir(Environment.DIRECTORY_MUSIC),
-                "SoundRecords/SoundRecord-" + dateFormat.format(new Date()) + EXTENSION);
-        File recordingDir = file.getParentFile();
-        if (recordingDir != null && !recordingDir.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            recordingDir.mkdirs();
-        }
-        return file;
+        return "SoundRecord-" + dateFormat.format(new Date());
     }
 
-    private void startRecordingThread() {
+    private void startRecordingThread(@Nullable PreRollBuffer preRoll) {
+        final PcmRingBus bus = mBus;
+        final PcmBufferPool pool = mBufferPool;
+        final AudioRecord record = mRecord;
+        final ProcessingChain processing = mProcessing;
+        final SpectrumAnalyzer analyzer = mSpectrumAnalyzer;
+        final int channels = mConfig.getChannels();
         mRecordThread = new Thread(() -> {
-            BufferedOutputStream out = null;
             try {
-                out = new BufferedOutputStream(new FileOutputStream(mFilePath));
-
-                while (mStatus == RecorderStatus.RECORDING) {
-                    int mStatus = mRecord.read(mData, 0, mData.length);
-                    if (mStatus == AudioRecord.ERROR_INVALID_OPERATION ||
-                            mStatus == AudioRecord.ERROR_BAD_VALUE) {
-                        Log.e(TAG, "Error reading audio record data");
-                        return;
-                    }
-                    out.write(mData, 0, BUFFER_SIZE);
-
+                if (pool != null) {
+                    captureToPool(record, preRoll, pool, bus, analyzer, channels);
+                } else {
+                    captureToBus(record, preRoll, bus, processing, channels);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to write audio stream", e);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while capturing", e);
             } finally {
-                Utils.closeQuietly(out);
+                bus.close();
+                if (pool != null) {
+                    pool.close();
+                }
+                mCaptureCpuNanos = Debug.threadCpuTimeNanos();
             }
-        });
+        }, "SoundRecorderCapture");
         mRecordThread.start();
     }
 
-    private void startVisualizerThread() {
-        mVisualizerThread = new Thread(() -> {
-            while (isRecording()) {
-                try {
-                    Thread.sleep(150L);
-                } catch (InterruptedException ignored) {
-                    // Ignore
+    private void captureToBus(AudioRecord record, @Nullable PreRollBuffer preRoll,
+                              PcmRingBus bus, ProcessingChain processing, int channels) {
+        // The audio from before the start goes first, through the same processing
+        while (preRoll != null) {
+            short[] block = bus.claim();
+            int length = preRoll.read(block, 0, block.length);
+            if (length == 0) {
+                break;
+            }
+            processing.process(block, length);
+            bus.publish(length);
+            mCapturedFrames += length / channels;
+        }
+
+        long slackNanos = getReadSlackNanos(record, bus.getBlockSize() / channels);
+        long lastRead = 0;
+        while (mStatus == RecorderStatus.RECORDING) {
+            short[] block = bus.claim();
+            long start = System.nanoTime();
+            int read = record.read(block, 0, block.length);
+            lastRead = countRead(lastRead, start, slackNanos, read, block.length);
+            if (read < 0) {
+                Log.e(TAG, "Error reading audio record data: " + read);
+                return;
+            }
+            if (read > 0) {
+                // Everyone downstream, the meter included, gets the processed audio
+                processing.process(block, read);
+                mLevelMeter.process(block, read);
+                bus.publish(read);
+                mCapturedFrames += read / channels;
+            }
+        }
+    }
+
+    /**
+     * Capture into direct buffers the writer hands to the file as they are. The
+     * spectrum still gets its samples through the bus, only while it is shown.
+     */
+    private void captureToPool(AudioRecord record, @Nullable PreRollBuffer preRoll,
+                               PcmBufferPool pool, PcmRingBus bus, SpectrumAnalyzer analyzer,
+                               int channels) throws InterruptedException {
+        while (preRoll != null) {
+            ByteBuffer buffer = pool.claim();
+            int length = preRoll.read(buffer);
+            if (length == 0) {
+                pool.recycle(buffer);
+                break;
+            }
+            buffer.flip();
+            pool.publish(buffer);
+            mCapturedFrames += length / channels;
+        }
+
+        long slackNanos = getReadSlackNanos(record, pool.getBufferSize() / 2 / channels);
+        long lastRead = 0;
+        while (mStatus == RecorderStatus.RECORDING) {
+            ByteBuffer buffer = pool.claim();
+            long start = System.nanoTime();
+            int read = record.read(buffer, buffer.capacity());
+            lastRead = countRead(lastRead, start, slackNanos, read, buffer.capacity());
+            if (read <= 0) {
+                pool.recycle(buffer);
+                if (read < 0) {
+                    Log.e(TAG, "Error reading audio record data: " + read);
+                    return;
                 }
+                continue;
+            }
+            buffer.limit(read);
+            int length = read / 2;
+            mLevelMeter.process(buffer);
+            if (analyzer.isEnabled()) {
+                short[] block = bus.claim();
+                buffer.asShortBuffer().get(block, 0, length);
+                bus.publish(length);
+            }
+            pool.publish(buffer);
+            mCapturedFrames += length / channels;
+        }
+    }
+
+    /**
+     * @return how long the capture thread can stay away from the AudioRecord between
+     * two reads before its buffer overflows
+     */
+    private static long getReadSlackNanos(AudioRecord record, int blockFrames) {
+        int frames = Math.max(record.getBufferSizeInFrames() - blockFrames, blockFrames);
+        return frames * 1000000000L / record.getSampleRate();
+    }
+
+    /**
+     * Account for a read of the capture thread. The platform does not report
+     * overruns of the AudioRecord, they are inferred from the time spent between reads.
+     *
+     * @param lastRead when the previous read returned, 0 for the first read
+     * @param start    when this read was issued
+     * @return when this read returned
+     */
+    private long countRead(long lastRead, long start, long slackNanos, int read,
+                           int requested) {
+        long end = System.nanoTime();
+        mReads.incrementAndGet();
+        mReadLatency.record(end - start);
+        if (read >= 0 && read < requested) {
+            mShortReads.incrementAndGet();
+        }
+        if (lastRead != 0 && start - lastRead > slackNanos) {
+            mOverruns.incrementAndGet();
+        }
+        return end;
+    }
 
-                double val = 0d;
-                for (byte mByte : mData) {
-                    val += Math.pow(mByte, 2);
+    private void startWriterThread() {
+        final PcmBufferPool pool = mBufferPool;
+        final PcmRingBus.Reader reader = pool == null
+                ? mBus.addReader("file", PcmRingBus.Backpressure.BLOCK) : null;
+        final ParcelFileDescriptor fd = mRecordingFd;
+        final SoundFormat format = mFormat;
+        final Uri uri = mRecordingUri;
+        final boolean skipSilence = mSkipSilence;
+        final RecordingJournal journal = mJournal;
+        final int sampleRate = mConfig.getSampleRate();
+        final int channels = mConfig.getChannels();
+        final int blockSize = mConfig.getBlockSize();
+        mWriterThread = new Thread(() -> {
+            short[] samples = new short[blockSize];
+            long syncInterval = (long) sampleRate * SYNC_INTERVAL_MS / 1000;
+            long frames = 0;
+            long nextSync = syncInterval;
+            AudioSink out = null;
+            PeakIndex peaks = null;
+            VoiceActivityGate gate = null;
+            boolean closed = false;
+            try {
+                out = format.createSink(fd, sampleRate, channels);
+                // Index what ends up in the file, after silence has been skipped
+                out = peaks = new PeakIndex(out, sampleRate, channels);
+                if (skipSilence) {
+                    gate = new VoiceActivityGate(out, sampleRate, channels,
+                            blockSize, SILENCE_THRESHOLD_DB, SILENCE_HANGOVER_MS,
+                            SILENCE_PRE_ROLL_MS);
+                    out = gate;
+                }
+
+                while (true) {
+                    int length;
+                    if (pool != null) {
+                        ByteBuffer buffer = pool.take();
+                        if (buffer == null) {
+                            break;
+                        }
+                        length = buffer.remaining() / 2;
+                        long start = System.nanoTime();
+                        out.write(buffer);
+                        mWriteLatency.record(System.nanoTime() - start);
+                        pool.recycle(buffer);
+                    } else {
+                        length = reader.acquire();
+                        if (length < 0) {
+                            break;
+                        }
+                        System.arraycopy(reader.getBlock(), 0, samples, 0, length);
+                        // Hand the block back before touching the storage
+                        reader.release();
+                        long start = System.nanoTime();
+                        out.write(samples, length);
+                        mWriteLatency.record(System.nanoTime() - start);
+                    }
+                    mBytesWritten.addAndGet(length * 2L);
+
+                    frames += length / channels;
+                    // Skipped silence is not part of the file
+                    mRecordedFrames = gate != null ? gate.getWrittenFrames() : frames;
+                    if (frames >= nextSync) {
+                        long start = System.nanoTime();
+                        out.sync();
+                        mSyncLatency.record(System.nanoTime() - start);
+                        journal.checkpoint(out.getLength(),
+                                mRecordedFrames * 1000 / sampleRate);
+                        nextSync += syncInterval;
+                    }
+                }
+                out.close();
+                closed = true;
+                // Closing the gate may still drop trailing silence
+                mRecordedFrames = gate != null ? gate.getWrittenFrames() : frames;
+                journal.finish(out.getLength(), mRecordedFrames * 1000 / sampleRate);
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "Failed to write audio stream", e);
+            } finally {
+                if (reader != null) {
+                    reader.remove();
+                } else {
+                    pool.detach();
                 }
-                val /= mData.length;
-                if (mAudioListener != null) {
-                    mAudioListener.onAudioLevelUpdated((int) Math.sqrt(val));
+                mWriterCpuNanos = Debug.threadCpuTimeNanos();
+                if (out != null) {
+                    if (!closed) {
+                        Utils.closeQuietly(out);
+                    }
+                    mRecordingSize = out.getLength();
+                } else {
+                    Utils.closeQuietly(fd);
+                }
+                if (closed && !peaks.isIndexEmbedded()) {
+                    writeSidecar(uri, PEAK_INDEX_DIR, ".peaks", peaks::writeIndex);
+                }
+                if (gate != null && gate.getGapCount() > 0 && !gate.isGapMapEmbedded()) {
+                    writeSidecar(uri, GAP_MAP_DIR, ".gaps", gate::writeGapMap);
                 }
             }
-        });
-        mVisualizerThread.start();
+        }, "SoundRecorderWriter");
+        mWriterThread.start();
     }
 
-    public void setAudioListener(OnAudioLevelUpdatedListener audioListener) {
-        mAudioListener = audioListener;
+    /**
+     * Keep the last seconds of audio, as many as set in the settings, while nothing
+     * is recording so the next recording starts with them. The microphone stays in
+     * use, only enable it while the app is in the foreground.
+     */
+    public void setPreRollEnabled(boolean enabled) {
+        mPreRollWanted = enabled;
+        if (!enabled) {
+            disarmPreRoll();
+        } else if (!isRecording()) {
+            armPreRoll();
+        }
     }
 
-    private void startTimer() {
-        Timer timer = new Timer();
-        mTimerListener = (seconds ->
-                mNotificationManager.notify(NOTIFICATION_ID, createRecordingNotification()));
+    private void armPreRoll() {
+        int seconds = Utils.getSoundPreRollSeconds(this);
+        if (mPreRollThread != null || seconds == 0 || checkSelfPermission(
+                Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
 
-        mTask = new TimerTask() {
-            @Override
-            public void run() {
-                mElapsedTime += 1000;
-                if (mTimerListener != null) {
-                    mTimerListener.onTimerUpdated(mElapsedTime);
+        RecordingProfile.CaptureConfig config = RecordingProfile.fromIndex(
+                Utils.getSoundRecordingProfile(this)).negotiate(this);
+        int sampleRate = config.getSampleRate();
+        int channels = config.getChannels();
+        int bufferSize = Math.max(config.getBufferSize(),
+                sampleRate * channels * 2 * PRE_ROLL_BUFFER_MS / 1000);
+        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, sampleRate,
+                config.getChannelMask(), FORMAT, bufferSize);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "Failed to start the pre-roll capture");
+            record.release();
+            return;
+        }
+
+        if (mPreRoll == null || mPreRoll.getSampleRate() != sampleRate
+                || mPreRoll.getChannels() != channels
+                || mPreRoll.getCapacityFrames() != sampleRate * seconds) {
+            mPreRoll = new PreRollBuffer(sampleRate, channels, seconds);
+        } else {
+            mPreRoll.clear();
+        }
+        mPreRollConfig = config;
+        mPreRollRecord = record;
+        record.startRecording();
+
+        final PreRollBuffer preRoll = mPreRoll;
+        final int blockSize = Math.max(config.getBlockSize(),
+                sampleRate * PRE_ROLL_READ_MS / 1000 * channels);
+        mPreRolling = true;
+        mPreRollThread = new Thread(() -> {
+            short[] block = new short[blockSize];
+            while (mPreRolling) {
+                int read = record.read(block, 0, block.length);
+                if (read < 0) {
+                    Log.e(TAG, "Error reading pre-roll audio data: " + read);
+                    return;
                 }
+                preRoll.write(block, read);
+            }
+        }, "SoundRecorderPreRoll");
+        mPreRollThread.start();
+    }
+
+    private void disarmPreRoll() {
+        if (mPreRollThread == null) {
+            return;
+        }
+        stopPreRollThread();
+        mPreRollRecord.stop();
+        mPreRollRecord.release();
+        mPreRollRecord = null;
+    }
+
+    private void stopPreRollThread() {
+        mPreRolling = false;
+        try {
+            mPreRollThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while stopping the pre-roll", e);
+        }
+        mPreRollThread = null;
+    }
+
+    /**
+     * Hand the pre-roll capture over to a recording in the same format. The record
+     * keeps running and buffers what arrives meanwhile, the recording reads on right
+     * after the last block of the pre-roll.
+     *
+     * @return the audio from before the start, or null if there is none to use
+     */
+    @Nullable
+    private PreRollBuffer takePreRoll(RecordingProfile.CaptureConfig config) {
+        if (mPreRollThread == null) {
+            return null;
+        }
+        if (mPreRollConfig.getSampleRate() != config.getSampleRate()
+                || mPreRollConfig.getChannelMask() != config.getChannelMask()) {
+            // The profile changed since
+            disarmPreRoll();
+            return null;
+        }
+        stopPreRollThread();
+        mRecord = mPreRollRecord;
+        mPreRollRecord = null;
+        Log.d(TAG, "Starting with " + mPreRoll.getFrames() + " frames of pre-roll");
+        return mPreRoll;
+    }
+
+    private void logCpuCost() {
+        double minutes = mCapturedFrames / (mSampleRate * 60.0);
+        if (minutes <= 0) {
+            return;
+        }
+        Log.d(TAG, String.format(Locale.US,
+                "CPU per recorded minute on the %s path: capture %.1f ms, writer %.1f ms",
+                mBufferPool != null ? "direct buffer" : "heap",
+                mCaptureCpuNanos / 1e6 / minutes, mWriterCpuNanos / 1e6 / minutes));
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Status: " + mStatus);
+        pw.println("Format: " + mFormat + (mConfig != null ? ", " + mConfig : ""));
+        pw.println("Captured frames: " + mCapturedFrames + ", recorded frames: "
+                + mRecordedFrames + ", duration: " + getDurationMillis() + " ms");
+        pw.println("Pre-roll: " + (mPreRollThread != null ? "armed" : "off"));
+        pw.println("Pipeline:");
+        mMetrics.dump(pw, "  ");
+        PcmBufferPool pool = mBufferPool;
+        if (pool != null) {
+            pw.println("  buffer pool: " + pool.getQueued() + " queued, "
+                    + pool.getStalls() + " stalls");
+        }
+        PcmRingBus bus = mBus;
+        if (bus != null) {
+            pw.println("  bus: " + bus.getPublished() + " blocks published, capacity "
+                    + bus.getCapacity());
+            for (PcmRingBus.Reader reader : bus.getReaders()) {
+                pw.println("  reader " + reader.getName() + " (" + reader.getPolicy()
+                        + "): lag " + reader.getLag() + ", consumed " + reader.getConsumed()
+                        + ", dropped " + reader.getDropped() + ", stalls "
+                        + reader.getStalls());
+            }
+        }
+        ProcessingChain processing = mProcessing;
+        if (processing != null && !processing.isEmpty()) {
+            pw.println("  processing: " + processing);
+        }
+        pw.println(String.format(Locale.US, "  CPU: capture %.1f ms, writer %.1f ms",
+                mCaptureCpuNanos / 1e6, mWriterCpuNanos / 1e6));
+        pw.println("Post-processing jobs:");
+        for (PostProcessor.JobStats stats : PostProcessor.getInstance(this).getRecentStats()) {
+            pw.println("  " + stats);
+        }
+    }
+
+    /**
+     * Feed the spectrum analyzer from a reader of its own that drops blocks when it
+     * falls behind, so the display can never hold the capture back.
+     */
+    private void startSpectrumThread() {
+        PcmRingBus.Reader reader = mBus.addReader("spectrum", PcmRingBus.Backpressure.DROP);
+        final SpectrumAnalyzer analyzer = mSpectrumAnalyzer;
+        final int blockSize = mBus.getBlockSize();
+        mSpectrumThread = new Thread(() -> {
+            short[] samples = new short[blockSize];
+            try {
+                int length;
+                while ((length = reader.acquire()) >= 0) {
+                    if (!analyzer.isEnabled()) {
+                        reader.release();
+                        continue;
+                    }
+                    System.arraycopy(reader.getBlock(), 0, samples, 0, length);
+                    // Skip the block if the producer overwrote it while it was copied
+                    if (reader.release()) {
+                        analyzer.process(samples, length);
+                    }
+                }
+            } finally {
+                reader.remove();
             }
-        };
-        timer.scheduleAtFixedRate(mTask, 1000, 1000);
+        }, "SoundRecorderSpectrum");
+        mSpectrumThread.start();
+    }
+
+    /**
+     * Keep metadata of formats that cannot embed it next to the other app data,
+     * named after the media item.
+     */
+    private void writeSidecar(Uri uri, String dirName, String extension,
+                              SidecarWriter writer) {
+        File dir = new File(getFilesDir(), dirName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return;
+        }
+        File file = new File(dir, uri.getLastPathSegment() + extension);
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            writer.write(channel);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file, e);
+        }
+    }
+
+    private interface SidecarWriter {
+        void write(WritableByteChannel channel) throws IOException;
+    }
+
+    /**
+     * @return the meter of the captured audio, disabled until a reader enables it
+     */
+    public LevelMeter getLevelMeter() {
+        return mLevelMeter;
+    }
+
+    /**
+     * @return the spectrum of the current or last recording, disabled until a reader
+     * enables it
+     */
+    @Nullable
+    public SpectrumAnalyzer getSpectrumAnalyzer() {
+        return mSpectrumAnalyzer;
+    }
+
+    /**
+     * @return the processing of the current or last recording, with its stage costs
+     */
+    @Nullable
+    public ProcessingChain getProcessingChain() {
+        return mProcessing;
+    }
+
+    private ProcessingChain createProcessingChain(int sampleRate, int channels,
+                                                  int blockSize) {
+        boolean cleanUp = Utils.getSoundCleanUp(this);
+        ProcessingChain chain = new ProcessingChain(blockSize);
+        if (cleanUp) {
+            chain.addStage("dc", new DcBlocker(sampleRate, channels, DC_CUTOFF_HZ))
+                    .addStage("highpass", Biquad.highPass(sampleRate, channels,
+                            HIGH_PASS_CUTOFF_HZ, HIGH_PASS_Q));
+        }
+        if (Utils.getSoundLevelVoice(this)) {
+            chain.addStage("gate", new NoiseGate(sampleRate, channels, GATE_THRESHOLD_DB,
+                    GATE_RANGE_DB, GATE_ATTACK_MS, GATE_HOLD_MS, GATE_RELEASE_MS))
+                    .addStage("agc", new AutomaticGainControl(sampleRate, channels,
+                            AGC_TARGET_DB, AGC_MAX_GAIN_DB, AGC_NOISE_FLOOR_DB,
+                            AGC_ATTACK_MS, AGC_RELEASE_MS));
+        }
+        if (!chain.isEmpty()) {
+            // Gain from the stages above must not clip
+            chain.addStage("limiter", new LookaheadLimiter(sampleRate, channels,
+                    LIMITER_CEILING_DB, LIMITER_LOOKAHEAD_MS, LIMITER_RELEASE_MS));
+        }
+        return chain;
+    }
+
+    /**
+     * While recording, the audio captured so far. Afterwards, the audio that ended up
+     * in the file, skipped silence excluded.
+     */
+    @Override
+    public long getDurationMillis() {
+        int sampleRate = mSampleRate;
+        if (sampleRate == 0) {
+            return 0;
+        }
+        long frames = isRecording() ? mCapturedFrames : mRecordedFrames;
+        return frames * 1000 / sampleRate;
     }
 
     private Notification createRecordingNotification() {
@@ -307,7 +919,7 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
                 this, SOUNDRECORDER_NOTIFICATION_CHANNEL)
                 .setContentTitle(getString(R.string.sound_notification_title))
                 .setContentText(getString(R.string.sound_notification_message,
-                        DateUtils.formatElapsedTime(mElapsedTime / 1000)))
+                        DateUtils.formatElapsedTime(getDurationMillis() / 1000)))
                 .setOngoing(true)
                 .setSmallIcon(R.drawable.ic_notification_sound)
                 .setContentIntent(pi)
@@ -316,22 +928,47 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
         return builder.build();
     }
 
+    /**
+     * @param percent progress of the job, or -1 while it is queued
+     */
+    private Notification createSavingNotification(long jobId, int percent) {
+        Intent intent = new Intent(this, RecorderActivity.class);
+        PendingIntent pi = PendingIntent.getActivity(this, 0, intent, 0);
+
+        Intent cancelIntent = new Intent(this, SoundRecorderService.class)
+                .setAction(ACTION_CANCEL_JOB)
+                .putExtra(EXTRA_JOB_ID, jobId);
+        PendingIntent cancelPIntent = PendingIntent.getService(this, 0, cancelIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        return new NotificationCompat.Builder(this, SOUNDRECORDER_NOTIFICATION_CHANNEL)
+                .setContentTitle(getString(R.string.sound_notification_title))
+                .setContentText(getString(R.string.sound_notification_saving))
+                .setProgress(100, Math.max(percent, 0), percent < 0)
+                .setOngoing(true)
+                .setSmallIcon(R.drawable.ic_notification_sound)
+                .addAction(R.drawable.ic_delete, getString(R.string.cancel), cancelPIntent)
+                .setContentIntent(pi)
+                .setColor(ContextCompat.getColor(this, R.color.colorPrimary))
+                .build();
+    }
+
     private void createShareNotification() {
         Uri outFileUri = Uri.parse(mOutFilePath);
         Intent intent = new Intent(this, RecorderActivity.class);
         PendingIntent pi = PendingIntent.getActivity(this, 0, intent, 0);
 
         PendingIntent playPIntent = PendingIntent.getActivity(this, 0,
-                LastRecordHelper.getOpenIntent(outFileUri, "audio/wav"),
+                LastRecordHelper.getOpenIntent(outFileUri, mFormat.getMimeType()),
                 PendingIntent.FLAG_CANCEL_CURRENT);
         PendingIntent sharePIntent = PendingIntent.getActivity(this, 0,
-                LastRecordHelper.getShareIntent(outFileUri, "audio/wav"),
+                LastRecordHelper.getShareIntent(outFileUri, mFormat.getMimeType()),
                 PendingIntent.FLAG_CANCEL_CURRENT);
         PendingIntent deletePIntent = PendingIntent.getActivity(this, 0,
                 LastRecordHelper.getDeleteIntent(this, true),
                 PendingIntent.FLAG_CANCEL_CURRENT);
 
-        LastRecordHelper.setLastItem(this, mOutFilePath, mElapsedTime, true);
+        LastRecordHelper.setLastItem(this, mOutFilePath, getDurationMillis(), true);
 
         Notification notification = new NotificationCompat.Builder(
                 this, SOUNDRECORDER_NOTIFICATION_CHANNEL)
@@ -339,7 +976,7 @@ public class SoundRecorderService extends Service implements MediaProviderHelper
                 .setSmallIcon(R.drawable.ic_notification_sound)
                 .setContentTitle(getString(R.string.sound_notification_title))
                 .setContentText(getString(R.string.sound_notification_message,
-                        DateUtils.formatElapsedTime(mElapsedTime / 1000)))
+                        DateUtils.formatElapsedTime(getDurationMillis() / 1000)))
                 .addAction(R.drawable.ic_play, getString(R.string.play), playPIntent)
                 .addAction(R.drawable.ic_share, getString(R.string.share), sharePIntent)
                 .addAction(R.drawable.ic_delete, getString(R.string.delete), deletePIntent)
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2017-2020 The LineageOS Project
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,33 +15,43 @@
  */
 package org.lineageos.recorder.ui;
 
-import android.app.Activity;
 import android.content.Context;
-import android.graphics.drawable.GradientDrawable;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.util.AttributeSet;
-import android.view.Gravity;
+import android.view.Choreographer;
 import android.view.View;
-import android.view.ViewGroup;
-import android.view.animation.AccelerateDecelerateInterpolator;
-import android.widget.LinearLayout;
-import android.widget.RelativeLayout;
 
+import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import org.lineageos.recorder.R;
-import org.lineageos.recorder.sounds.OnAudioLevelUpdatedListener;
+import org.lineageos.recorder.audio.LevelMeter;
 import org.lineageos.recorder.utils.Utils;
 
-import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.List;
-
-public class SoundVisualizer extends LinearLayout implements OnAudioLevelUpdatedListener {
-    private final Context mContext;
-    private final List<View> mWaveList = new ArrayList<>();
-    private final int mBubbleRadius;
-    private final AccelerateDecelerateInterpolator mInterpolator =
-            new AccelerateDecelerateInterpolator();
+/**
+ * Row of bubbles that grow with the recording level.
+ * <p>
+ * The level is read from the {@link LevelMeter} once per frame while the view is
+ * shown, and the bubbles are drawn straight on the canvas: nothing is laid out or
+ * allocated per frame. The meter is only enabled while somebody looks at it.
+ */
+public class SoundVisualizer extends View implements Choreographer.FrameCallback {
+    // Larger in the middle, like the waves of a voice
+    private static final float[] BUBBLE_WEIGHTS = { 0.45f, 0.75f, 1f, 0.75f, 0.45f };
+    // Levels from -60 dBFS to full scale fill the range of the bubbles
+    private static final float FLOOR_DB = -60f;
+    private static final float ATTACK_MS = 40f;
+    private static final float DECAY_MS = 250f;
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final int mMinDiameter;
+
+    @Nullable
+    private LevelMeter mLevelMeter;
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private float mLevel;
 
     public SoundVisualizer(Context context) {
         this(context, null);
@@ -54,65 +64,102 @@ public class SoundVisualizer extends LinearLayout implements OnAudioLevelUpdated
     public SoundVisualizer(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
 
-        mContext = context;
-        mBubbleRadius = Utils.convertDp2Px(context, 24);
-
-        // Setup layout
-        setLayoutParams(new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
-                ViewGroup.LayoutParams.WRAP_CONTENT));
-        setOrientation(HORIZONTAL);
-        setGravity(Gravity.CENTER);
-
-        // Draw bubbles
-        for (int counter = 0; counter < 5; counter++) {
-            // Create container layout
-            RelativeLayout container = new RelativeLayout(context);
-            RelativeLayout.LayoutParams containerParams = new RelativeLayout.LayoutParams(0,
-                    ViewGroup.LayoutParams.MATCH_PARENT);
-            containerParams.addRule(RelativeLayout.CENTER_IN_PARENT, RelativeLayout.TRUE);
-            container.setLayoutParams(containerParams);
-
-            // Inflate params to set weight = 1
-            LinearLayout.LayoutParams inflateParams =
-                    new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.MATCH_PARENT, 1);
-
-            // Create bubble
-            View view = new View(context);
-            view.setLayoutParams(new ViewGroup.LayoutParams(mBubbleRadius, mBubbleRadius));
-
-            GradientDrawable drawable = new GradientDrawable();
-            drawable.setColor(ContextCompat.getColor(context, R.color.icon));
-            drawable.setCornerRadius(mBubbleRadius);
-
-            view.setBackground(drawable);
-            view.setForegroundGravity(Gravity.CENTER);
-
-            // Register items
-            mWaveList.add(view);
-            container.addView(view, containerParams);
-            addView(container, inflateParams);
+        mMinDiameter = Utils.convertDp2Px(context, 24);
+        mPaint.setStyle(Paint.Style.FILL);
+        mPaint.setColor(ContextCompat.getColor(context, R.color.icon));
+    }
+
+    /**
+     * @param meter the meter of the current recording, null once there is none
+     */
+    public void setLevelMeter(@Nullable LevelMeter meter) {
+        if (mLevelMeter != null && mLevelMeter != meter) {
+            mLevelMeter.setEnabled(false);
+        }
+        mLevelMeter = meter;
+        if (meter != null) {
+            // updateRunning() only acts on a change, an already running view keeps running
+            meter.setEnabled(mRunning);
+        }
+        mLevel = 0;
+        updateRunning();
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateRunning();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        updateRunning();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateRunning();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        LevelMeter meter = mLevelMeter;
+        if (!mRunning || meter == null) {
+            return;
         }
+
+        int rms = LevelMeter.getRms(meter.getSnapshot());
+        float target = 0;
+        if (rms > 0) {
+            float db = 20f * (float) Math.log10(rms / 32768f);
+            target = Math.max(0f, Math.min(1f, 1f - db / FLOOR_DB));
+        }
+
+        // Smooth per elapsed time, so the motion does not depend on the refresh rate
+        float elapsedMs = mLastFrameNanos == 0 ? 0 : (frameTimeNanos - mLastFrameNanos) / 1e6f;
+        mLastFrameNanos = frameTimeNanos;
+        float timeConstant = target > mLevel ? ATTACK_MS : DECAY_MS;
+        mLevel = target + (mLevel - target) * (float) Math.exp(-elapsedMs / timeConstant);
+
+        invalidate();
+        Choreographer.getInstance().postFrameCallback(this);
     }
 
     @Override
-    public void onAudioLevelUpdated(int value) {
-        SecureRandom random = new SecureRandom();
-        for (int counter = 0; counter < 5 && counter < mWaveList.size(); counter++) {
-            final int finalCount = counter;
-            ((Activity) mContext).runOnUiThread(() -> {
-                View bubble = mWaveList.get(finalCount);
-
-                int originalRadius = bubble.getHeight();
-                int size = value / (random.nextInt(5) + 1) * 2 + 10;
-                int newRadius = Math.max(size, mBubbleRadius);
-
-                ResizeAnimation anim = new ResizeAnimation(bubble, originalRadius,
-                        newRadius - originalRadius);
-                anim.setInterpolator(mInterpolator);
-                anim.setDuration(150);
-
-                bubble.startAnimation(anim);
-            });
+    protected void onDraw(Canvas canvas) {
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        float slot = (float) width / BUBBLE_WEIGHTS.length;
+        float maxDiameter = Math.max(mMinDiameter, Math.min(slot, height));
+        float centerY = getPaddingTop() + height / 2f;
+
+        for (int i = 0; i < BUBBLE_WEIGHTS.length; i++) {
+            float diameter = mMinDiameter
+                    + (maxDiameter - mMinDiameter) * mLevel * BUBBLE_WEIGHTS[i];
+            float centerX = getPaddingLeft() + slot * (i + 0.5f);
+            canvas.drawCircle(centerX, centerY, diameter / 2f, mPaint);
+        }
+    }
+
+    private void updateRunning() {
+        boolean running = mLevelMeter != null && isAttachedToWindow() && isShown();
+        if (running == mRunning) {
+            return;
+        }
+        mRunning = running;
+        if (mLevelMeter != null) {
+            mLevelMeter.setEnabled(running);
+        }
+
+        Choreographer choreographer = Choreographer.getInstance();
+        if (running) {
+            mLastFrameNanos = 0;
+            choreographer.postFrameCallback(this);
+        } else {
+            choreographer.removeFrameCallback(this);
         }
     }
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+
+import org.lineageos.recorder.R;
+import org.lineageos.recorder.audio.SpectrumAnalyzer;
+
+import java.util.Arrays;
+
+/**
+ * Live spectrum of the recording, as bars or as a scrolling spectrogram.
+ * <p>
+ * Frequencies are laid out on a log scale so hum at the low end is as visible as
+ * hiss at the top. Like {@link SoundVisualizer} the view polls once per frame and
+ * does not allocate while drawing; tables and the spectrogram bitmap are only
+ * rebuilt when the size or the analyzer changes.
+ */
+public class SpectrumView extends View implements Choreographer.FrameCallback {
+    public enum Style {
+        BARS,
+        SPECTROGRAM
+    }
+
+    private static final int BAR_COUNT = 48;
+    private static final float MIN_FREQUENCY = 20f;
+    private static final float MIN_DB = -100f;
+    private static final float MAX_DB = 0f;
+    private static final float BAR_GAP_RATIO = 0.25f;
+    // dB per second the bars and their peak markers fall at
+    private static final float BAR_FALL_RATE = 60f;
+    private static final float PEAK_FALL_RATE = 20f;
+
+    private final Paint mBarPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mPeakPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final int[] mPalette = new int[256];
+    private final float mPeakHeight;
+
+    @Nullable
+    private SpectrumAnalyzer mAnalyzer;
+    private Style mStyle = Style.BARS;
+    private boolean mRunning;
+    private long mLastSequence = -1;
+    private long mLastFrameNanos;
+    private float[] mLevels = new float[0];
+
+    // First bin of every bar, one more entry for the end of the last bar
+    private final int[] mBarBins = new int[BAR_COUNT + 1];
+    private final float[] mBars = new float[BAR_COUNT];
+    private final float[] mPeaks = new float[BAR_COUNT];
+
+    // Spectrogram: one column per spectrum, written in a ring
+    @Nullable
+    private Bitmap mSpectrogram;
+    private int[] mRowBins = new int[0];
+    private int[] mColumn = new int[0];
+    private int mColumnPosition;
+    private final Rect mSource = new Rect();
+    private final Rect mDestination = new Rect();
+
+    public SpectrumView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        int color = ContextCompat.getColor(context, R.color.icon);
+        mBarPaint.setColor(color);
+        mPeakPaint.setColor(Color.WHITE);
+        mPeakHeight = getResources().getDisplayMetrics().density * 2;
+
+        // Transparent to the accent color, then to white for the loudest levels
+        for (int i = 0; i < mPalette.length; i++) {
+            float t = i / (mPalette.length - 1f);
+            float white = Math.max(0f, (t - 0.75f) * 4f);
+            mPalette[i] = Color.argb(Math.round(255 * Math.min(1f, t * 1.5f)),
+                    blend(Color.red(color), white), blend(Color.green(color), white),
+                    blend(Color.blue(color), white));
+        }
+    }
+
+    /**
+     * @param analyzer the analyzer of the current recording, null once there is none
+     */
+    public void setAnalyzer(@Nullable SpectrumAnalyzer analyzer) {
+        if (mAnalyzer != null && mAnalyzer != analyzer) {
+            mAnalyzer.setEnabled(false);
+        }
+        mAnalyzer = analyzer;
+        if (analyzer != null) {
+            // updateRunning() only acts on a change, an already running view keeps running
+            analyzer.setEnabled(mRunning);
+        }
+        if (analyzer != null && mLevels.length != analyzer.getBinCount()) {
+            mLevels = new float[analyzer.getBinCount()];
+        }
+        mLastSequence = -1;
+        Arrays.fill(mBars, MIN_DB);
+        Arrays.fill(mPeaks, MIN_DB);
+        if (mSpectrogram != null) {
+            mSpectrogram.eraseColor(Color.TRANSPARENT);
+        }
+        updateTables();
+        updateRunning();
+        invalidate();
+    }
+
+    public void setStyle(Style style) {
+        mStyle = style;
+        invalidate();
+    }
+
+    public Style getStyle() {
+        return mStyle;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateRunning();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        updateRunning();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateRunning();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mSpectrogram != null) {
+            mSpectrogram.recycle();
+            mSpectrogram = null;
+        }
+        int width = w - getPaddingLeft() - getPaddingRight();
+        int height = h - getPaddingTop() - getPaddingBottom();
+        if (width > 0 && height > 0) {
+            mSpectrogram = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mColumn = new int[height];
+            mRowBins = new int[height];
+            mColumnPosition = 0;
+        }
+        updateTables();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        SpectrumAnalyzer analyzer = mAnalyzer;
+        if (!mRunning || analyzer == null) {
+            return;
+        }
+
+        float elapsed = mLastFrameNanos == 0 ? 0 : (frameTimeNanos - mLastFrameNanos) / 1e9f;
+        mLastFrameNanos = frameTimeNanos;
+
+        if (analyzer.getSequence() != mLastSequence) {
+            mLastSequence = analyzer.read(mLevels);
+            updateBars(elapsed);
+            addColumn();
+        } else {
+            updateBars(elapsed);
+        }
+
+        invalidate();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mStyle == Style.SPECTROGRAM) {
+            drawSpectrogram(canvas);
+        } else {
+            drawBars(canvas);
+        }
+    }
+
+    private void drawBars(Canvas canvas) {
+        int left = getPaddingLeft();
+        int bottom = getHeight() - getPaddingBottom();
+        float height = bottom - getPaddingTop();
+        float slot = (float) (getWidth() - left - getPaddingRight()) / BAR_COUNT;
+        float gap = slot * BAR_GAP_RATIO;
+
+        for (int bar = 0; bar < BAR_COUNT; bar++) {
+            float x = left + bar * slot + gap / 2;
+            float top = bottom - height * normalize(mBars[bar]);
+            canvas.drawRect(x, top, x + slot - gap, bottom, mBarPaint);
+            float peak = bottom - height * normalize(mPeaks[bar]);
+            canvas.drawRect(x, peak - mPeakHeight, x + slot - gap, peak, mPeakPaint);
+        }
+    }
+
+    private void drawSpectrogram(Canvas canvas) {
+        Bitmap bitmap = mSpectrogram;
+        if (bitmap == null) {
+            return;
+        }
+        // The oldest column is right after the newest one, draw it on the left
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int older = width - mColumnPosition;
+
+        mSource.set(mColumnPosition, 0, width, height);
+        mDestination.set(left, top, left + older, top + height);
+        canvas.drawBitmap(bitmap, mSource, mDestination, mBitmapPaint);
+        mSource.set(0, 0, mColumnPosition, height);
+        mDestination.set(left + older, top, left + width, top + height);
+        canvas.drawBitmap(bitmap, mSource, mDestination, mBitmapPaint);
+    }
+
+    private void updateBars(float elapsed) {
+        if (mLevels.length == 0) {
+            return;
+        }
+        for (int bar = 0; bar < BAR_COUNT; bar++) {
+            float level = MIN_DB;
+            for (int bin = mBarBins[bar]; bin < mBarBins[bar + 1]; bin++) {
+                level = Math.max(level, mLevels[bin]);
+            }
+            // Rise at once, fall at a steady rate
+            mBars[bar] = Math.max(level, mBars[bar] - BAR_FALL_RATE * elapsed);
+            mPeaks[bar] = Math.max(mBars[bar], mPeaks[bar] - PEAK_FALL_RATE * elapsed);
+        }
+    }
+
+    private void addColumn() {
+        Bitmap bitmap = mSpectrogram;
+        if (bitmap == null || mLevels.length == 0) {
+            return;
+        }
+        int rows = mColumn.length;
+        for (int row = 0; row < rows; row++) {
+            // Row 0 is the top, the highest frequency
+            float level = mLevels[mRowBins[rows - 1 - row]];
+            mColumn[row] = mPalette[Math.round(normalize(level) * (mPalette.length - 1))];
+        }
+        bitmap.setPixels(mColumn, 0, 1, mColumnPosition, 0, 1, rows);
+        mColumnPosition = (mColumnPosition + 1) % bitmap.getWidth();
+    }
+
+    /**
+     * Map bars and spectrogram rows to analyzer bins on a log frequency scale.
+     */
+    private void updateTables() {
+        SpectrumAnalyzer analyzer = mAnalyzer;
+        if (analyzer == null) {
+            return;
+        }
+        int bins = analyzer.getBinCount();
+        float maxFrequency = analyzer.getSampleRate() / 2f;
+        float binWidth = maxFrequency / (bins - 1);
+
+        for (int bar = 0; bar <= BAR_COUNT; bar++) {
+            float frequency = logFrequency((float) bar / BAR_COUNT, maxFrequency);
+            mBarBins[bar] = Math.min(bins, Math.round(frequency / binWidth));
+        }
+        // Every bar covers at least one bin
+        for (int bar = 1; bar <= BAR_COUNT; bar++) {
+            mBarBins[bar] = Math.max(mBarBins[bar], Math.min(bins, mBarBins[bar - 1] + 1));
+        }
+
+        int rows = mRowBins.length;
+        for (int row = 0; row < rows; row++) {
+            float frequency = logFrequency((row + 0.5f) / rows, maxFrequency);
+            mRowBins[row] = Math.min(bins - 1, Math.round(frequency / binWidth));
+        }
+    }
+
+    private void updateRunning() {
+        boolean running = mAnalyzer != null && isAttachedToWindow() && isShown();
+        if (running == mRunning) {
+            return;
+        }
+        mRunning = running;
+        if (mAnalyzer != null) {
+            mAnalyzer.setEnabled(running);
+        }
+
+        Choreographer choreographer = Choreographer.getInstance();
+        if (running) {
+            mLastFrameNanos = 0;
+            choreographer.postFrameCallback(this);
+        } else {
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    private static float logFrequency(float position, float maxFrequency) {
+        return MIN_FREQUENCY * (float) Math.pow(maxFrequency / MIN_FREQUENCY, position);
+    }
+
+    private static float normalize(float db) {
+        return Math.max(0f, Math.min(1f, (db - MIN_DB) / (MAX_DB - MIN_DB)));
+    }
+
+    private static int blend(int channel, float white) {
+        return Math.round(channel + (255 - channel) * white);
+    }
+}
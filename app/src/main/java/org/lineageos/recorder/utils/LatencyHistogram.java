@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.utils;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in power of two buckets of microseconds. Recording
+ * takes a few atomic adds and no lock, any number of threads can record at once.
+ */
+public final class LatencyHistogram {
+    // Bucket i counts durations under 2^i microseconds, the last one all the longer ones
+    private static final int BUCKETS = 24;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * Recording while this runs may leave a few samples behind.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @param fraction between 0 and 1
+     * @return an upper bound of the given percentile, in nanoseconds
+     */
+    public long getPercentileNanos(double fraction) {
+        long count = mCount.get();
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min((1L << i) * 1000, mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        long count = mCount.get();
+        if (count == 0) {
+            return "no samples";
+        }
+        return String.format(Locale.US,
+                "%d samples, mean %.3f ms, p50 < %.3f ms, p99 < %.3f ms, max %.3f ms",
+                count, mTotalNanos.get() / 1e6 / count, getPercentileNanos(0.5) / 1e6,
+                getPercentileNanos(0.99) / 1e6, mMaxNanos.get() / 1e6);
+    }
+}
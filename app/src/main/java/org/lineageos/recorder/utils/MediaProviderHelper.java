@@ -17,20 +17,21 @@ package org.lineageos.recorder.utils;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.Files;
+import org.lineageos.recorder.jobs.Job;
+import org.lineageos.recorder.jobs.PostProcessor;
+import org.lineageos.recorder.jobs.PublishJob;
+
+import java.io.FileNotFoundException;
 
 public final class MediaProviderHelper {
     private static final String TAG = "MediaProviderHelper";
@@ -38,18 +39,23 @@ public final class MediaProviderHelper {
     private MediaProviderHelper() {
     }
 
-    public static void addSoundToContentProvider(
+    /**
+     * Insert a pending sound item the recorder can write into directly.
+     * The item stays hidden until it is {@link #publish published}.
+     */
+    @Nullable
+    public static Uri createSoundItem(
             @Nullable ContentResolver cr,
-            @Nullable File file,
-            @NonNull OnContentWritten listener) {
-        if (cr == null || file == null) {
-            return;
+            @NonNull String name,
+            @NonNull String mimeType) {
+        if (cr == null) {
+            return null;
         }
 
         final ContentValues values = new ContentValues();
-        values.put(MediaStore.Audio.Media.DISPLAY_NAME, file.getName());
-        values.put(MediaStore.Audio.Media.TITLE, file.getName());
-        values.put(MediaStore.Audio.Media.MIME_TYPE, "audio/x-wav");
+        values.put(MediaStore.Audio.Media.DISPLAY_NAME, name);
+        values.put(MediaStore.Audio.Media.TITLE, name);
+        values.put(MediaStore.Audio.Media.MIME_TYPE, mimeType);
         values.put(MediaStore.Audio.Media.ARTIST, "Recorder");
         values.put(MediaStore.Audio.Media.ALBUM, "Sound records");
         values.put(MediaStore.Audio.Media.DATE_ADDED, System.currentTimeMillis() / 1000L);
@@ -59,99 +65,116 @@ public final class MediaProviderHelper {
         final Uri uri = cr.insert(MediaStore.Audio.Media.getContentUri(
                 MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
         if (uri == null) {
-            Log.e(TAG, "Failed to insert " + file.getAbsolutePath());
-            return;
+            Log.e(TAG, "Failed to insert " + name);
         }
-
-        new WriterTask(file, uri, cr, listener).execute();
+        return uri;
     }
 
-    public static void addVideoToContentProvider(
+    /**
+     * Insert a pending video item the recorder can write into directly.
+     * The item stays hidden until it is {@link #publish published}.
+     */
+    @Nullable
+    public static Uri createVideoItem(
             @Nullable ContentResolver cr,
-            @Nullable File file,
-            @NonNull OnContentWritten listener) {
-        if (cr == null || file == null) {
-            return;
+            @NonNull String name) {
+        if (cr == null) {
+            return null;
         }
 
         final ContentValues values = new ContentValues();
-        values.put(MediaStore.Video.Media.DISPLAY_NAME, file.getName());
-        values.put(MediaStore.Video.Media.TITLE, file.getName());
+        values.put(MediaStore.Video.Media.DISPLAY_NAME, name);
+        values.put(MediaStore.Video.Media.TITLE, name);
         values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
         values.put(MediaStore.Video.Media.DATE_ADDED, System.currentTimeMillis() / 1000L);
         values.put(MediaStore.Video.Media.RELATIVE_PATH, "Movies/ScreenRecords");
-        values.put(MediaStore.Audio.Media.IS_PENDING, 1);
+        values.put(MediaStore.Video.Media.IS_PENDING, 1);
 
         final Uri uri = cr.insert(MediaStore.Video.Media.getContentUri(
                 MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
         if (uri == null) {
-            Log.e(TAG, "Failed to insert " + file.getAbsolutePath());
-            return;
+            Log.e(TAG, "Failed to insert " + name);
         }
-
-        new WriterTask(file, uri, cr, listener).execute();
+        return uri;
     }
 
-    static void remove(@NonNull ContentResolver cr, @NonNull Uri uri) {
-        cr.delete(uri, null, null);
+    /**
+     * Open a pending item for writing. The returned descriptor is seekable so that
+     * headers can be patched in place once the recording is finished.
+     */
+    @Nullable
+    public static ParcelFileDescriptor openForWrite(@NonNull ContentResolver cr,
+                                                    @NonNull Uri uri) {
+        try {
+            return cr.openFileDescriptor(uri, "rw", null);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Failed to open " + uri, e);
+            return null;
+        }
     }
 
-    @RequiresApi(29)
-    static class WriterTask extends AsyncTask<Void, Void, String> {
-        @NonNull
-        private final File file;
-        @NonNull
-        private final Uri uri;
-        @NonNull
-        private final ContentResolver cr;
-        @NonNull
-        private final OnContentWritten listener;
-
-        /* synthetic */ WriterTask(@NonNull File file,
-                                   @NonNull Uri uri,
-                                   @NonNull ContentResolver cr,
-                                   @NonNull OnContentWritten listener) {
-            this.file = file;
-            this.uri = uri;
-            this.cr = cr;
-            this.listener = listener;
-        }
+    /**
+     * Make a pending item visible to other apps once its content has been written.
+     * This runs as a {@link PostProcessor} job so it survives the process.
+     *
+     * @return the id of the job, to cancel it
+     */
+    public static long publish(
+            @NonNull Context context,
+            @NonNull Uri uri,
+            long duration,
+            long size,
+            @NonNull OnContentWritten listener) {
+        return PostProcessor.getInstance(context).submit(
+                PublishJob.builder(uri, duration, size), new PostProcessor.Listener() {
+                    @Override
+                    public void onJobProgress(@NonNull Job job, int percent) {
+                        listener.onPublishProgress(job.getId(), percent);
+                    }
+
+                    @Override
+                    public void onJobFinished(@NonNull Job job,
+                                              @NonNull PostProcessor.Outcome outcome) {
+                        listener.onContentWritten(uri, outcome == PostProcessor.Outcome.DONE
+                                ? uri.toString() : null);
+                    }
+                });
+    }
 
-        @Override
-        protected String doInBackground(Void... voids) {
-            try {
-                final ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "w", null);
-                if (pfd == null) {
-                    return null;
-                }
-                final FileOutputStream oStream = new FileOutputStream(pfd.getFileDescriptor());
-                oStream.write(Files.readAllBytes(file.toPath()));
-                oStream.close();
-                pfd.close();
-
-
-                final ContentValues values = new ContentValues();
-                values.put(MediaStore.MediaColumns.IS_PENDING, 0);
-                cr.update(uri, values, null, null);
-
-                if (!file.delete()) {
-                    Log.w(TAG, "Failed to delete tmp file");
-                }
-
-                return uri.toString();
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to write into MediaStore", e);
-                return null;
-            }
+    /**
+     * Same as {@link #publish}, on the calling thread.
+     *
+     * @return whether the item could be updated
+     */
+    @WorkerThread
+    public static boolean publishNow(
+            @NonNull ContentResolver cr,
+            @NonNull Uri uri,
+            long duration,
+            long size) {
+        final ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        values.put(MediaStore.MediaColumns.DURATION, duration);
+        values.put(MediaStore.MediaColumns.SIZE, size);
+        if (cr.update(uri, values, null, null) != 1) {
+            Log.e(TAG, "Failed to publish " + uri);
+            return false;
         }
+        return true;
+    }
 
-        @Override
-        protected void onPostExecute(String s) {
-            listener.onContentWritten(s);
-        }
+    public static void remove(@NonNull ContentResolver cr, @NonNull Uri uri) {
+        cr.delete(uri, null, null);
     }
 
     public interface OnContentWritten {
-        void onContentWritten(@Nullable String uri);
+        /**
+         * @param item the item that was being published
+         * @param uri  the published item, or null if it failed or was cancelled
+         */
+        void onContentWritten(@NonNull Uri item, @Nullable String uri);
+
+        default void onPublishProgress(long jobId, int percent) {
+        }
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.utils;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and latencies of a recording pipeline. They are meant to be
+ * updated for every block from the pipeline threads and read by dumpsys.
+ * Everything is created up front, lookups never happen on the hot path.
+ */
+public final class PipelineMetrics {
+    private final Map<String, AtomicLong> mCounters = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> mLatencies = new LinkedHashMap<>();
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = new AtomicLong();
+        mCounters.put(name, counter);
+        return counter;
+    }
+
+    public LatencyHistogram latency(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        mLatencies.put(name, histogram);
+        return histogram;
+    }
+
+    /**
+     * Start over, for a new recording.
+     */
+    public void reset() {
+        for (AtomicLong counter : mCounters.values()) {
+            counter.set(0);
+        }
+        for (LatencyHistogram histogram : mLatencies.values()) {
+            histogram.reset();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet()) {
+            pw.println(prefix + entry.getKey() + ": " + entry.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet()) {
+            pw.println(prefix + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
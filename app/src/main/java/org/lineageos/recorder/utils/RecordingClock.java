@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2020 The LineageOS Project
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -13,8 +13,17 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package org.lineageos.recorder.sounds;
+package org.lineageos.recorder.utils;
 
-public interface OnAudioLevelUpdatedListener {
-    void onAudioLevelUpdated(int value);
+/**
+ * Length of a recording, as measured by the media itself: captured audio frames or
+ * encoded video timestamps, not wall clock time.
+ */
+public interface RecordingClock {
+
+    /**
+     * @return the length of the current recording in milliseconds, or of the last
+     * one once it stopped; safe to call from any thread
+     */
+    long getDurationMillis();
 }
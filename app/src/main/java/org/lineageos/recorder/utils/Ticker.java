@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs all the periodic UI and notification work of the app on the main thread,
+ * so none of it needs a thread of its own.
+ * <p>
+ * Ticks are scheduled from the time a task was added rather than from the end of
+ * the previous tick, so they do not drift; ticks missed while the main thread was
+ * busy are skipped, not replayed.
+ */
+public final class Ticker {
+    private static Ticker sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Runnable, Tick> mTicks = new HashMap<>();
+
+    private Ticker() {
+    }
+
+    public static synchronized Ticker getInstance() {
+        if (sInstance == null) {
+            sInstance = new Ticker();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Run a task every {@code intervalMs}, the first time right away. Scheduling a
+     * task again restarts it with the new interval.
+     */
+    public synchronized void schedule(Runnable task, long intervalMs) {
+        cancel(task);
+        Tick tick = new Tick(task, intervalMs);
+        mTicks.put(task, tick);
+        mHandler.post(tick);
+    }
+
+    public synchronized void cancel(Runnable task) {
+        Tick tick = mTicks.remove(task);
+        if (tick != null) {
+            tick.mCancelled = true;
+            mHandler.removeCallbacks(tick);
+        }
+    }
+
+    private final class Tick implements Runnable {
+        private final Runnable mTask;
+        private final long mInterval;
+        private long mNext;
+        private volatile boolean mCancelled;
+
+        Tick(Runnable task, long interval) {
+            mTask = task;
+            mInterval = interval;
+            mNext = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            mTask.run();
+
+            long now = SystemClock.uptimeMillis();
+            mNext += mInterval;
+            if (mNext <= now) {
+                mNext += ((now - mNext) / mInterval + 1) * mInterval;
+            }
+            synchronized (Ticker.this) {
+                // The task may have cancelled itself
+                if (!mCancelled) {
+                    mHandler.postAtTime(this, mNext);
+                }
+            }
+        }
+    }
+}
@@ -41,15 +41,35 @@ public class Utils {
     public static final String PREF_AUDIO_RECORDING_SOURCE = "audio_recording_source";
     public static final String PREF_SCREEN_RECORDING_QUALITY = "screen_recording_quality";
     public static final String PREF_SCREEN_RECORDING_TAPS = "screen_recording_showtaps";
+    public static final String PREF_SOUND_RECORDING_FORMAT = "sound_recording_format";
+    public static final String PREF_SOUND_SKIP_SILENCE = "sound_skip_silence";
+    public static final String PREF_SOUND_RECORDING_PROFILE = "sound_recording_profile";
+    public static final String PREF_SOUND_CLEAN_UP = "sound_clean_up";
+    public static final String PREF_SOUND_LEVEL_VOICE = "sound_level_voice";
+    public static final String PREF_SOUND_VISUALIZER_MODE = "sound_visualizer_mode";
+    public static final String PREF_SOUND_PRE_ROLL = "sound_pre_roll";
     public static final int PREF_AUDIO_RECORDING_SOURCE_DISABLED = 0;
     public static final int PREF_AUDIO_RECORDING_SOURCE_INTERNAL = 1;
     public static final int PREF_AUDIO_RECORDING_SOURCE_MICROPHONE = 2;
+    public static final int PREF_AUDIO_RECORDING_SOURCE_INTERNAL_MICROPHONE = 3;
     public static final int PREF_AUDIO_RECORDING_SOURCE_DEFAULT = PREF_AUDIO_RECORDING_SOURCE_DISABLED;
     public static final int PREF_VIDEO_RECORDING_BITRATE_LOW = 4000000;
     public static final int PREF_VIDEO_RECORDING_BITRATE_MEDIUM = 5500000;
     public static final int PREF_VIDEO_RECORDING_BITRATE_HIGH = 7500000;
     public static final int PREF_VIDEO_RECORDING_BITRATE_DEFAULT = 1;
     public static final boolean PREF_SCREEN_RECORDING_TAPS_DEFAULT = false;
+    public static final int PREF_SOUND_RECORDING_FORMAT_DEFAULT = 0;
+    public static final boolean PREF_SOUND_SKIP_SILENCE_DEFAULT = false;
+    public static final int PREF_SOUND_RECORDING_PROFILE_DEFAULT = 0;
+    public static final boolean PREF_SOUND_CLEAN_UP_DEFAULT = false;
+    public static final boolean PREF_SOUND_LEVEL_VOICE_DEFAULT = false;
+    public static final int PREF_SOUND_VISUALIZER_MODE_LEVEL = 0;
+    public static final int PREF_SOUND_VISUALIZER_MODE_SPECTRUM = 1;
+    public static final int PREF_SOUND_VISUALIZER_MODE_SPECTROGRAM = 2;
+    public static final int PREF_SOUND_VISUALIZER_MODE_DEFAULT = PREF_SOUND_VISUALIZER_MODE_LEVEL;
+    // Seconds kept for every entry of the setting, the first one is off
+    public static final int[] PREF_SOUND_PRE_ROLL_SECONDS = {0, 5, 10, 30};
+    public static final int PREF_SOUND_PRE_ROLL_DEFAULT = 0;
 
     private Utils() {
     }
@@ -106,6 +126,52 @@ public class Utils {
         return prefs.getBoolean(Utils.PREF_SCREEN_RECORDING_TAPS, Utils.PREF_SCREEN_RECORDING_TAPS_DEFAULT);
     }
 
+    public static int getSoundRecordingFormat(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getInt(Utils.PREF_SOUND_RECORDING_FORMAT, Utils.PREF_SOUND_RECORDING_FORMAT_DEFAULT);
+    }
+
+    public static int getSoundRecordingProfile(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getInt(Utils.PREF_SOUND_RECORDING_PROFILE, Utils.PREF_SOUND_RECORDING_PROFILE_DEFAULT);
+    }
+
+    public static boolean getSoundSkipSilence(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getBoolean(Utils.PREF_SOUND_SKIP_SILENCE, Utils.PREF_SOUND_SKIP_SILENCE_DEFAULT);
+    }
+
+    public static boolean getSoundCleanUp(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getBoolean(Utils.PREF_SOUND_CLEAN_UP, Utils.PREF_SOUND_CLEAN_UP_DEFAULT);
+    }
+
+    public static boolean getSoundLevelVoice(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getBoolean(Utils.PREF_SOUND_LEVEL_VOICE, Utils.PREF_SOUND_LEVEL_VOICE_DEFAULT);
+    }
+
+    public static int getSoundVisualizerMode(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getInt(Utils.PREF_SOUND_VISUALIZER_MODE, Utils.PREF_SOUND_VISUALIZER_MODE_DEFAULT);
+    }
+
+    public static int getSoundPreRoll(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        return prefs.getInt(Utils.PREF_SOUND_PRE_ROLL, Utils.PREF_SOUND_PRE_ROLL_DEFAULT);
+    }
+
+    public static int getSoundPreRollSeconds(Context context) {
+        int index = getSoundPreRoll(context);
+        return index >= 0 && index < PREF_SOUND_PRE_ROLL_SECONDS.length
+                ? PREF_SOUND_PRE_ROLL_SECONDS[index] : 0;
+    }
+
+    public static void setSoundVisualizerMode(Context context, int mode) {
+        SharedPreferences prefs = context.getSharedPreferences(Utils.PREFS, 0);
+        prefs.edit().putInt(Utils.PREF_SOUND_VISUALIZER_MODE, mode).apply();
+    }
+
     @SuppressWarnings("SameParameterValue")
     public static int convertDp2Px(Context context, int dp) {
         DisplayMetrics metrics = context.getResources().getDisplayMetrics();
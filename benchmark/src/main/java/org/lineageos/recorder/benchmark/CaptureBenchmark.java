@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.LevelMeter;
+import org.lineageos.recorder.audio.PcmRingBus;
+import org.lineageos.recorder.audio.ProcessingChain;
+import org.lineageos.recorder.audio.SpectrumAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second through the capture loop of the recorder: fill a block of the
+ * ring bus, meter it and publish it, with a writer thread draining the bus like the
+ * file writer does and optionally the spectrum thread. The microphone read is
+ * replaced by a copy of synthetic audio and the writer discards what it gets, see
+ * {@link SinkBenchmark} for the cost of the formats. Backpressure from the writer
+ * is part of the result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = 1024;
+    private static final int BUS_SECONDS = 2;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"false", "true"})
+    public boolean spectrum;
+
+    private PcmRingBus mBus;
+    private ProcessingChain mProcessing;
+    private LevelMeter mMeter;
+    private short[] mSignal;
+    private int mBlockSize;
+    private int mOffset;
+    private Thread mWriterThread;
+    private Thread mSpectrumThread;
+
+    // Written by the consumer threads, read after they are done
+    private volatile long mWrittenSamples;
+
+    @Setup
+    public void setUp() {
+        mBlockSize = BLOCK_FRAMES * channels;
+        mBus = new PcmRingBus(BUS_SECONDS * SAMPLE_RATE * channels / mBlockSize, mBlockSize);
+        mProcessing = new ProcessingChain(mBlockSize);
+        mMeter = new LevelMeter();
+        mMeter.setEnabled(true);
+        mSignal = Signals.voice(SAMPLE_RATE, channels, SAMPLE_RATE);
+
+        PcmRingBus.Reader writer = mBus.addReader("file", PcmRingBus.Backpressure.BLOCK);
+        mWriterThread = new Thread(() -> {
+            short[] samples = new short[mBlockSize];
+            long written = 0;
+            int length;
+            while ((length = writer.acquire()) >= 0) {
+                System.arraycopy(writer.getBlock(), 0, samples, 0, length);
+                writer.release();
+                written += length;
+            }
+            writer.remove();
+            mWrittenSamples = written;
+        }, "CaptureBenchmarkWriter");
+        mWriterThread.start();
+
+        if (spectrum) {
+            PcmRingBus.Reader reader = mBus.addReader("spectrum",
+                    PcmRingBus.Backpressure.DROP);
+            SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SAMPLE_RATE, channels, 4096,
+                    1024);
+            analyzer.setEnabled(true);
+            mSpectrumThread = new Thread(() -> {
+                short[] samples = new short[mBlockSize];
+                int length;
+                while ((length = reader.acquire()) >= 0) {
+                    System.arraycopy(reader.getBlock(), 0, samples, 0, length);
+                    if (reader.release()) {
+                        analyzer.process(samples, length);
+                    }
+                }
+                reader.remove();
+            }, "CaptureBenchmarkSpectrum");
+            mSpectrumThread.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mBus.close();
+        mWriterThread.join();
+        if (mSpectrumThread != null) {
+            mSpectrumThread.join();
+        }
+        if (mWrittenSamples != mBus.getPublished() * mBlockSize) {
+            throw new IllegalStateException("Writer lost samples");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_FRAMES)
+    public void capture() {
+        short[] block = mBus.claim();
+        if (mOffset + mBlockSize > mSignal.length) {
+            mOffset = 0;
+        }
+        System.arraycopy(mSignal, mOffset, block, 0, mBlockSize);
+        mOffset += mBlockSize;
+        mProcessing.process(block, mBlockSize);
+        mMeter.process(block, mBlockSize);
+        mBus.publish(mBlockSize);
+    }
+}
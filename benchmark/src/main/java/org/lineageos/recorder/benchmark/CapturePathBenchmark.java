@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.AudioSink;
+import org.lineageos.recorder.audio.LevelMeter;
+import org.lineageos.recorder.audio.PeakIndex;
+import org.lineageos.recorder.audio.WavWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU time per recorded minute of the two ways plain WAV is captured, all work of
+ * the capture and writer threads done on one thread, thread handoffs aside.
+ * <p>
+ * The heap path reads into a short array, copies it out of the ring bus and
+ * converts it to bytes in the writer. The direct path reads into a direct buffer
+ * that goes to the file channel as is. The microphone read is replaced by a copy
+ * of synthetic audio into the same kind of memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapturePathBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = 1024;
+    // One recorded minute in blocks, rounded down
+    private static final int BLOCKS_PER_MINUTE = SAMPLE_RATE * 60 / BLOCK_FRAMES;
+
+    @Param({"heap", "direct"})
+    public String path;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private File mFile;
+    private AudioSink mSink;
+    private LevelMeter mMeter;
+    private int mBlockSize;
+
+    private short[] mSignal;
+    private short[] mBlock;
+    private short[] mWriterBlock;
+
+    private ByteBuffer mDirectSignal;
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("capture", WavWriter.EXTENSION);
+        mMeter = new LevelMeter();
+        mMeter.setEnabled(true);
+        mBlockSize = BLOCK_FRAMES * channels;
+
+        mSignal = Signals.voice(BLOCK_FRAMES, channels, SAMPLE_RATE);
+        mBlock = new short[mBlockSize];
+        mWriterBlock = new short[mBlockSize];
+
+        mDirectSignal = ByteBuffer.allocateDirect(mBlockSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+        mDirectSignal.asShortBuffer().put(mSignal);
+        mBuffer = ByteBuffer.allocateDirect(mBlockSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void startFile() throws IOException {
+        FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        mSink = new PeakIndex(new WavWriter(channel, SAMPLE_RATE, channels, 16), SAMPLE_RATE,
+                channels);
+    }
+
+    @TearDown(Level.Iteration)
+    public void finishFile() throws IOException {
+        mSink.close();
+    }
+
+    /**
+     * Average time is the CPU time of one recorded minute, the benchmark thread
+     * never waits.
+     */
+    @Benchmark
+    @OperationsPerInvocation(1)
+    public void recordMinute() throws IOException {
+        if ("direct".equals(path)) {
+            for (int i = 0; i < BLOCKS_PER_MINUTE; i++) {
+                captureDirect();
+            }
+        } else {
+            for (int i = 0; i < BLOCKS_PER_MINUTE; i++) {
+                captureHeap();
+            }
+        }
+    }
+
+    private void captureHeap() throws IOException {
+        System.arraycopy(mSignal, 0, mBlock, 0, mBlockSize);
+        mMeter.process(mBlock, mBlockSize);
+        System.arraycopy(mBlock, 0, mWriterBlock, 0, mBlockSize);
+        mSink.write(mWriterBlock, mBlockSize);
+    }
+
+    private void captureDirect() throws IOException {
+        mBuffer.clear();
+        mBuffer.put(mDirectSignal.duplicate());
+        mBuffer.flip();
+        mMeter.process(mBuffer);
+        mSink.write(mBuffer);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.RealFft;
+import org.lineageos.recorder.audio.SpectrumAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of one transform, and of the analysis of one hop of captured audio. The
+ * recorder runs a 4096 point transform every 1024 frames, about 47 times per
+ * second at 48 kHz.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FftBenchmark {
+    private static final int HOP_FRAMES = 1024;
+
+    @Param({"1024", "2048", "4096", "8192"})
+    public int size;
+
+    private RealFft mFft;
+    private float[] mSignal;
+    private float[] mData;
+    private SpectrumAnalyzer mAnalyzer;
+    private short[] mHop;
+
+    @Setup
+    public void setUp() {
+        mFft = new RealFft(size);
+        Random random = new Random(0);
+        mSignal = new float[size];
+        for (int i = 0; i < size; i++) {
+            mSignal[i] = random.nextFloat() * 2 - 1;
+        }
+        mData = new float[size];
+
+        mAnalyzer = new SpectrumAnalyzer(48000, 1, size, HOP_FRAMES);
+        mAnalyzer.setEnabled(true);
+        mHop = new short[HOP_FRAMES];
+        for (int i = 0; i < mHop.length; i++) {
+            mHop[i] = (short) random.nextInt();
+        }
+    }
+
+    @Benchmark
+    public float[] transform() {
+        System.arraycopy(mSignal, 0, mData, 0, size);
+        mFft.transform(mData);
+        return mData;
+    }
+
+    @Benchmark
+    public long analyzeHop() {
+        mAnalyzer.process(mHop, mHop.length);
+        return mAnalyzer.getSequence();
+    }
+}
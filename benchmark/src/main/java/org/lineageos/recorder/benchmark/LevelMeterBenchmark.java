@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.LevelMeter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples metered per second on the capture thread. A disabled meter, nothing
+ * showing the level, should cost next to nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevelMeterBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_SAMPLES = 2048;
+
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    private LevelMeter mMeter;
+    private short[] mBlock;
+
+    @Setup
+    public void setUp() {
+        mMeter = new LevelMeter();
+        mMeter.setEnabled(enabled);
+        mBlock = Signals.voice(BLOCK_SAMPLES, 1, SAMPLE_RATE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SAMPLES)
+    public long process() {
+        mMeter.process(mBlock, mBlock.length);
+        return mMeter.getSnapshot();
+    }
+}
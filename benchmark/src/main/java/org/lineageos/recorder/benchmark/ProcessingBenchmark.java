@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.AutomaticGainControl;
+import org.lineageos.recorder.audio.Biquad;
+import org.lineageos.recorder.audio.DcBlocker;
+import org.lineageos.recorder.audio.LookaheadLimiter;
+import org.lineageos.recorder.audio.NoiseGate;
+import org.lineageos.recorder.audio.ProcessingChain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames processed per second by the capture processing stages, alone and chained
+ * the way the recorder does with every option enabled. Settings match the ones of
+ * SoundRecorderService.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessingBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = 1024;
+
+    @Param({"dc", "highpass", "gate", "agc", "limiter", "dc+highpass+gate+agc+limiter"})
+    public String stages;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private ProcessingChain mChain;
+    private short[] mSignal;
+    private short[] mBlock;
+    private int mOffset;
+
+    @Setup
+    public void setUp() {
+        int blockSize = BLOCK_FRAMES * channels;
+        mChain = new ProcessingChain(blockSize);
+        for (String stage : stages.split("\\+")) {
+            switch (stage) {
+                case "dc":
+                    mChain.addStage(stage, new DcBlocker(SAMPLE_RATE, channels, 5.0));
+                    break;
+                case "highpass":
+                    mChain.addStage(stage, Biquad.highPass(SAMPLE_RATE, channels, 80.0,
+                            Math.sqrt(0.5)));
+                    break;
+                case "gate":
+                    mChain.addStage(stage, new NoiseGate(SAMPLE_RATE, channels, -50.0, 20.0,
+                            2, 200, 150));
+                    break;
+                case "agc":
+                    mChain.addStage(stage, new AutomaticGainControl(SAMPLE_RATE, channels,
+                            -18.0, 20.0, -55.0, 50, 2000));
+                    break;
+                case "limiter":
+                    mChain.addStage(stage, new LookaheadLimiter(SAMPLE_RATE, channels, -1.0,
+                            5, 50));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown stage " + stage);
+            }
+        }
+        mSignal = Signals.voice(SAMPLE_RATE, channels, SAMPLE_RATE);
+        mBlock = new short[blockSize];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_FRAMES)
+    public short[] process() {
+        if (mOffset + mBlock.length > mSignal.length) {
+            mOffset = 0;
+        }
+        // Stages work in place, start every block from the clean signal
+        System.arraycopy(mSignal, mOffset, mBlock, 0, mBlock.length);
+        mOffset += mBlock.length;
+        mChain.process(mBlock, mBlock.length);
+        return mBlock;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.Resampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input frames converted per second by one thread. Anything above the input rate
+ * is faster than real time, e.g. 44100 ops/s for a 44.1 kHz source.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+    private static final int BLOCK_FRAMES = 1024;
+
+    @Param({"44100:48000", "48000:16000", "48000:44100"})
+    public String ratio;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"LOW", "MEDIUM", "HIGH"})
+    public Resampler.Quality quality;
+
+    private Resampler mResampler;
+    private short[] mInput;
+    private short[] mOutput;
+
+    @Setup
+    public void setUp() {
+        String[] rates = ratio.split(":");
+        mResampler = new Resampler(Integer.parseInt(rates[0]), Integer.parseInt(rates[1]),
+                channels, quality, BLOCK_FRAMES);
+        mInput = new short[BLOCK_FRAMES * channels];
+        Random random = new Random(0);
+        for (int i = 0; i < mInput.length; i++) {
+            mInput[i] = (short) random.nextInt();
+        }
+        mOutput = new short[mResampler.getMaxOutput(mInput.length)];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_FRAMES)
+    public int process() {
+        return mResampler.process(mInput, mInput.length, mOutput, 0);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import java.util.Random;
+
+/**
+ * Synthetic PCM shared by the benchmarks.
+ */
+final class Signals {
+    private Signals() {
+    }
+
+    /**
+     * A voice-like test signal: a harmonic tone with syllable-rate bursts and pauses
+     * over low noise. Unlike white noise it compresses and gates like a recording.
+     */
+    static short[] voice(int frames, int channels, int sampleRate) {
+        short[] samples = new short[frames * channels];
+        Random random = new Random(0);
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / sampleRate;
+            // 4 syllables per second, silent a third of the time
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 2 * t) + 0.5) / 1.5;
+            double tone = 0.5 * Math.sin(2 * Math.PI * 180 * t)
+                    + 0.25 * Math.sin(2 * Math.PI * 360 * t)
+                    + 0.12 * Math.sin(2 * Math.PI * 540 * t);
+            for (int channel = 0; channel < channels; channel++) {
+                double noise = random.nextGaussian() * 0.002;
+                samples[i * channels + channel] =
+                        (short) Math.round((0.5 * envelope * tone + noise) * Short.MAX_VALUE);
+            }
+        }
+        return samples;
+    }
+}
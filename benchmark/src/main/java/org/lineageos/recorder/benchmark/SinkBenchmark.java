@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.recorder.benchmark;
+
+import org.lineageos.recorder.audio.AudioSink;
+import org.lineageos.recorder.audio.FlacEncoder;
+import org.lineageos.recorder.audio.PeakIndex;
+import org.lineageos.recorder.audio.VoiceActivityGate;
+import org.lineageos.recorder.audio.WavWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames written per second by the writer thread, through the same sink chain the
+ * recorder uses: optional silence gate, peak index, then the file format. The file
+ * goes to the temporary directory and is started over every iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SinkBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = 1024;
+
+    @Param({"wav", "flac"})
+    public String format;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"false", "true"})
+    public boolean skipSilence;
+
+    private File mFile;
+    private short[] mSignal;
+    private short[] mBlock;
+    private int mBlockSize;
+    private int mOffset;
+    private AudioSink mSink;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("sink", "." + format);
+        mSignal = Signals.voice(SAMPLE_RATE, channels, SAMPLE_RATE);
+        mBlockSize = BLOCK_FRAMES * channels;
+        mBlock = new short[mBlockSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void startFile() throws IOException {
+        mSink = createSink();
+    }
+
+    @TearDown(Level.Iteration)
+    public void finishFile() throws IOException {
+        mSink.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_FRAMES)
+    public void write() throws IOException {
+        if (mOffset + mBlockSize > mSignal.length) {
+            mOffset = 0;
+        }
+        // The writer copies every block out of the bus before writing it
+        System.arraycopy(mSignal, mOffset, mBlock, 0, mBlockSize);
+        mSink.write(mBlock, mBlockSize);
+        mOffset += mBlockSize;
+    }
+
+    /**
+     * Header and trailer of an empty file, as patched in place by close() and by the
+     * periodic sync() minus its flush to storage.
+     */
+    @Benchmark
+    public long createAndClose() throws IOException {
+        AudioSink sink = createSink();
+        sink.close();
+        return sink.getLength();
+    }
+
+    private AudioSink createSink() throws IOException {
+        // Sinks close their channel
+        FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        AudioSink sink = "flac".equals(format)
+                ? new FlacEncoder(channel, SAMPLE_RATE, channels)
+                : new WavWriter(channel, SAMPLE_RATE, channels, 16);
+        sink = new PeakIndex(sink, SAMPLE_RATE, channels);
+        if (skipSilence) {
+            sink = new VoiceActivityGate(sink, SAMPLE_RATE, channels, mBlockSize, -45.0,
+                    1000, 300);
+        }
+        return sink;
+    }
+}